@@ -0,0 +1,96 @@
+package woe.twin;
+
+import akka.actor.ExtendedActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.serialization.Serialization;
+import akka.serialization.Serialization$;
+import akka.serialization.SerializationExtension;
+import akka.serialization.SerializerWithStringManifest;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.NotSerializableException;
+import java.util.concurrent.TimeUnit;
+
+import static woe.twin.WorldMap.*;
+
+// Compares the device serializer with the jackson-cbor serializer that the Device protocol used before.
+// The serialized size of each message is printed when each trial starts.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceSerializationBenchmark {
+  @Param({"device", "jackson-cbor"})
+  public String serializer;
+
+  @Param({"event", "command", "response", "state"})
+  public String message;
+
+  private ActorSystem<Void> system;
+  private ExtendedActorSystem extendedActorSystem;
+  private Serialization serialization;
+  private SerializerWithStringManifest serializerWithStringManifest;
+  private Object object;
+  private byte[] bytes;
+  private String manifest;
+
+  @Setup
+  public void setup() throws NotSerializableException {
+    final var config = ConfigFactory.parseString(String.format("%s%n%s%n%s%n%s",
+        "akka.actor.provider = local",
+        "akka.log-config-on-start = off",
+        "akka.persistence.journal.auto-start-journals = []",
+        "akka.persistence.snapshot-store.auto-start-snapshot-stores = []"))
+        .withFallback(ConfigFactory.load());
+    system = ActorSystem.create(Behaviors.empty(), getClass().getSimpleName(), config);
+
+    serialization = SerializationExtension.get(system.classicSystem());
+    final var region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+    object = messageFor(message, region, system.unsafeUpcast());
+    serializerWithStringManifest = (SerializerWithStringManifest) ("device".equals(serializer)
+        ? serialization.findSerializerFor(object)
+        : serialization.serializerFor(WorldMap.LatLng.class)); // LatLng is still bound to jackson-cbor
+    extendedActorSystem = (ExtendedActorSystem) system.classicSystem();
+    bytes = toBinary();
+    manifest = serializerWithStringManifest.manifest(object);
+    System.out.printf("%n%s %s %d bytes, manifest %s%n", serializer, message, bytes.length, manifest);
+  }
+
+  @TearDown
+  public void tearDown() {
+    system.terminate();
+  }
+
+  // Jackson resolves actor refs through the transport information that remoting sets, as Serialization.deserialize does.
+  @Benchmark
+  public byte[] toBinary() {
+    return Serialization$.MODULE$.withTransportInformation(extendedActorSystem, () -> serializerWithStringManifest.toBinary(object));
+  }
+
+  @Benchmark
+  public Object fromBinary() {
+    return serialization.deserialize(bytes, serializerWithStringManifest.identifier(), manifest).get();
+  }
+
+  private static Object messageFor(String message, Region region, ActorRef<Device.TelemetryResponse> replyTo) {
+    switch (message) {
+      case "event":
+        return new Device.DeviceMadeSad();
+      case "command":
+        return new Device.TelemetrySadCommand(region, replyTo);
+      case "response":
+        return new Device.TelemetrySadResponse(new Device.TelemetrySadCommand(region, replyTo));
+      case "state":
+        final var state = new Device.State(region);
+        state.deviceActivated(new Device.DeviceActivated());
+        return state;
+      default:
+        throw new IllegalArgumentException(String.format("No message %s", message));
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package woe.twin;
+
+import akka.persistence.query.Offset;
+import akka.projection.eventsourced.EventEnvelope;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static woe.twin.WorldMap.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RegionSummariesBenchmark {
+  private static final int batchSize = 200; // the projection's group-after-envelopes
+
+  @Param({"3", "8", "13", "18"})
+  public int zoom;
+
+  private final List<EventEnvelope<Device.Event>> eventEnvelopes = new ArrayList<>(batchSize);
+  private List<RegionStore.RegionSummary> summaries;
+  private RegionStore.RegionSummaries regionSummaries;
+
+  // Device events spread over the zoom 8 London viewport, so coarse zooms fold many events into one summary.
+  @Setup
+  public void setup() {
+    final var random = new Random(zoom);
+    final var area = WorldMapBenchmark.viewportAt(8);
+    final var latSpan = area.topLeft.lat - area.botRight.lat;
+    final var lngSpan = area.botRight.lng - area.topLeft.lng;
+    for (int i = 0; i < batchSize; i++) {
+      final var lat = area.botRight.lat + random.nextDouble() * latSpan;
+      final var lng = area.topLeft.lng + random.nextDouble() * lngSpan;
+      final var persistenceId = Device.persistenceIdOf(entityIdOf(regionAtLatLng(18, latLng(lat, lng))), false).id();
+      eventEnvelopes.add(EventEnvelope.create(Offset.sequence(i), persistenceId, 1, eventFor(i), 0));
+    }
+    regionSummaries = new RegionStore.RegionSummaries(zoom);
+    summaries = add().asList();
+  }
+
+  // The handler's summaries are reused from batch to batch, run with -prof gc to see the allocation per batch.
+  @Benchmark
+  public RegionStore.RegionSummaries add() {
+    regionSummaries.clear();
+    for (EventEnvelope<Device.Event> eventEnvelope : eventEnvelopes) {
+      regionSummaries.add(eventEnvelope);
+    }
+    return regionSummaries;
+  }
+
+  // The previous summaries, a boxed tile key map of summary objects, each new tile also builds its region.
+  @Benchmark
+  public Map<Long, RegionStore.RegionSummary> addHashMap() {
+    final Map<Long, RegionStore.RegionSummary> regionSummaries = new HashMap<>();
+    for (EventEnvelope<Device.Event> eventEnvelope : eventEnvelopes) {
+      final var tileKey = tileKeyAtZoom(zoom, Device.tileKeyForPersistenceId(eventEnvelope.persistenceId()));
+      final var summary = regionSummaries.computeIfAbsent(tileKey, k -> new RegionStore.RegionSummary(regionForTileKey(k)));
+      final var event = eventEnvelope.event();
+      if (event instanceof Device.DeviceActivated) {
+        summary.deviceCount++;
+        summary.happyCount++;
+      } else if (event instanceof Device.DeviceDeactivatedHappy) {
+        summary.deviceCount--;
+        summary.happyCount--;
+      } else if (event instanceof Device.DeviceDeactivatedSad) {
+        summary.deviceCount--;
+        summary.sadCount--;
+      } else if (event instanceof Device.DeviceMadeHappy) {
+        summary.happyCount++;
+        summary.sadCount--;
+      } else if (event instanceof Device.DeviceMadeSad) {
+        summary.happyCount--;
+        summary.sadCount++;
+      }
+    }
+    return regionSummaries;
+  }
+
+  @Benchmark
+  public String sql() {
+    return RegionUpsert.sql(summaries);
+  }
+
+  private static Device.Event eventFor(int i) {
+    switch (i % 5) {
+      case 0:
+        return new Device.DeviceActivated();
+      case 1:
+        return new Device.DeviceMadeHappy();
+      case 2:
+        return new Device.DeviceMadeSad();
+      case 3:
+        return new Device.DeviceDeactivatedHappy();
+      default:
+        return new Device.DeviceDeactivatedSad();
+    }
+  }
+}
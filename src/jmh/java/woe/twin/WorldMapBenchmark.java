@@ -0,0 +1,140 @@
+package woe.twin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static woe.twin.WorldMap.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorldMapBenchmark {
+  private static final int points = 1024; // power of 2, cycled with a mask
+
+  @State(Scope.Thread)
+  public static class AtZoom {
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18"})
+    public int zoom;
+
+    private final LatLng[] latLngs = new LatLng[points];
+    private int next;
+
+    @Setup
+    public void setup() {
+      final var random = new Random(zoom);
+      for (int i = 0; i < points; i++) {
+        latLngs[i] = latLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+      }
+    }
+
+    LatLng nextLatLng() {
+      return latLngs[next++ & (points - 1)];
+    }
+  }
+
+  // Zoom 18 device regions, their compact entity ids and their legacy entity ids.
+  @State(Scope.Thread)
+  public static class Devices {
+    private final Region[] regions = new Region[points];
+    private final String[] entityIds = new String[points];
+    private final String[] legacyEntityIds = new String[points];
+    private int next;
+
+    @Setup
+    public void setup() {
+      final var random = new Random(18);
+      for (int i = 0; i < points; i++) {
+        regions[i] = WorldMap.regionAtLatLng(18, latLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+        entityIds[i] = WorldMap.entityIdOf(regions[i]);
+        legacyEntityIds[i] = legacyEntityIdOf(regions[i]);
+      }
+    }
+
+    int next() {
+      return next++ & (points - 1);
+    }
+  }
+
+  // The map viewports from zooming out of central London, as in RegionSqlTest.
+  @State(Scope.Thread)
+  public static class Viewport {
+    @Param({"3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18"})
+    public int zoom;
+
+    private Region area;
+
+    @Setup
+    public void setup() {
+      area = viewportAt(zoom);
+    }
+  }
+
+  @Benchmark
+  public Region regionAtLatLng(AtZoom atZoom) {
+    return WorldMap.regionAtLatLng(atZoom.zoom, atZoom.nextLatLng());
+  }
+
+  @Benchmark
+  public String entityIdOf(Devices devices) {
+    return WorldMap.entityIdOf(devices.regions[devices.next()]);
+  }
+
+  @Benchmark
+  public Region regionForEntityId(Devices devices) {
+    return WorldMap.regionForEntityId(devices.entityIds[devices.next()]);
+  }
+
+  @Benchmark
+  public Region regionForLegacyEntityId(Devices devices) {
+    return WorldMap.regionForEntityId(devices.legacyEntityIds[devices.next()]);
+  }
+
+  @Benchmark
+  public List<Region> regionsIn(Viewport viewport) {
+    return WorldMap.regionsIn(viewport.area);
+  }
+
+  static Region viewportAt(int zoom) {
+    switch (zoom) {
+      case 18:
+        return new Region(18, topLeft(51.50458547797352, -0.12260913848876955), botRight(51.497659673380355, -0.11235773563385011));
+      case 17:
+        return new Region(18, topLeft(51.50804798558264, -0.12773752212524417), botRight(51.49419637638168, -0.10723471641540529));
+      case 16:
+        return new Region(18, topLeft(51.51497888812548, -0.1379942893981934), botRight(51.4872756736659, -0.09698867797851564));
+      case 15:
+        return new Region(17, topLeft(51.52882418070984, -0.15848636627197268), botRight(51.47341775085057, -0.0764751434326172));
+      case 14:
+        return new Region(16, topLeft(51.55652882123261, -0.19947052001953128), botRight(51.44571601895113, -0.03544807434082032));
+      case 13:
+        return new Region(15, topLeft(51.61183421075632, -0.28152465820312506), botRight(51.39020854602782, 0.04652023315429688));
+      case 12:
+        return new Region(14, topLeft(51.722349458282906, -0.44563293457031256), botRight(51.27909868682927, 0.21045684814453125));
+      case 11:
+        return new Region(13, topLeft(51.94257177774757, -0.7738494873046876), botRight(51.056070541830934, 0.5383300781250001));
+      case 10:
+        return new Region(12, topLeft(52.379790828551016, -1.4295959472656252), botRight(50.60677419392376, 1.1947631835937502));
+      case 9:
+        return new Region(11, topLeft(53.24056438248143, -2.7410888671875004), botRight(49.69428518147923, 2.5076293945312504));
+      case 8:
+        return new Region(10, topLeft(54.911356424188476, -5.366821289062501), botRight(47.81684332352077, 5.130615234375001));
+      case 7:
+        return new Region(9, topLeft(58.05463191137292, -10.612792968750002), botRight(43.8503744993026, 10.382080078125002));
+      case 6:
+        return new Region(8, topLeft(63.597447665602004, -21.11572265625), botRight(35.08395557927643, 20.874023437500004));
+      case 5:
+        return new Region(7, topLeft(72.08743247624157, -42.09960937500001), botRight(14.562317701914855, 41.87988281250001));
+      case 4:
+        return new Region(6, topLeft(81.8612078903467, -84.11132812500001), botRight(-29.45873118535533, 83.84765625000001));
+      case 3:
+        return new Region(5, topLeft(88.33883839556603, -168.04687500000003), botRight(-76.43460358351301, 167.87109375000003));
+      default:
+        throw new IllegalArgumentException(String.format("No viewport for zoom %d", zoom));
+    }
+  }
+}
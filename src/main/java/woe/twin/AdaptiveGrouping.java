@@ -0,0 +1,146 @@
+package woe.twin;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+import com.typesafe.config.Config;
+
+import akka.NotUsed;
+import akka.persistence.query.Offset;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.javadsl.SourceProvider;
+import akka.projection.jdbc.JdbcSession;
+import akka.projection.jdbc.javadsl.JdbcHandler;
+import akka.stream.javadsl.Source;
+
+/* Sizes the region projection batches at runtime instead of the fixed group-after-envelopes and group-after-duration.
+ * The event stream is batched while the handler is busy, so a batch is whatever arrived during the previous batch,
+ * up to the current group limit. A caught up projection handles events as they arrive, without waiting for a group
+ * to fill. After each batch the limit doubles toward max-envelopes while the events are older than catch-up-lag,
+ * otherwise it moves halfway toward the number of envelopes the handler processes in target-batch-latency.
+ * The handler time includes the batch's SQL round trips, not the offset commit.
+ * Each batch is stored as one envelope of an exactly once projection, its offset is the batch's last offset.
+ */
+class AdaptiveGrouping {
+  private final String name;
+  private final int minEnvelopes;
+  private final int maxEnvelopes;
+  private final long targetBatchLatencyNs;
+  private final long catchUpLagMs;
+  private volatile int groupLimit;
+  private volatile long handlerNsPerEnvelope;
+  private volatile long lagMs;
+  private volatile int batchSize;
+
+  AdaptiveGrouping(String name, int minEnvelopes, int maxEnvelopes, Duration targetBatchLatency, Duration catchUpLag) {
+    this.name = name;
+    this.minEnvelopes = minEnvelopes;
+    this.maxEnvelopes = maxEnvelopes;
+    this.targetBatchLatencyNs = targetBatchLatency.toNanos();
+    this.catchUpLagMs = catchUpLag.toMillis();
+    groupLimit = minEnvelopes;
+  }
+
+  static AdaptiveGrouping of(String name, Config config) {
+    return new AdaptiveGrouping(name,
+        config.getInt("woe.twin.projection.adaptive-grouping.min-envelopes"),
+        config.getInt("woe.twin.projection.adaptive-grouping.max-envelopes"),
+        config.getDuration("woe.twin.projection.adaptive-grouping.target-batch-latency"),
+        config.getDuration("woe.twin.projection.adaptive-grouping.catch-up-lag"));
+  }
+
+  int groupLimit() {
+    return groupLimit;
+  }
+
+  void registerMetrics() {
+    Metrics.gauge(name + ".group-limit", () -> groupLimit);
+    Metrics.gauge(name + ".batch-size", () -> batchSize);
+    Metrics.gauge(name + ".handler-ns-per-envelope", () -> handlerNsPerEnvelope);
+    Metrics.gauge(name + ".lag-ms", () -> lagMs);
+  }
+
+  // Called by the handler after each batch, the timestamp is when the batch's last event was persisted.
+  void handled(int envelopes, long handlerNs, long eventTimestampMs) {
+    final var nsPerEnvelope = Math.max(1, handlerNs / Math.max(1, envelopes));
+    handlerNsPerEnvelope = handlerNsPerEnvelope == 0 ? nsPerEnvelope : (3 * handlerNsPerEnvelope + nsPerEnvelope) / 4;
+    lagMs = Math.max(0, System.currentTimeMillis() - eventTimestampMs);
+    batchSize = envelopes;
+
+    final long limit;
+    if (lagMs > catchUpLagMs) {
+      limit = 2L * groupLimit;
+    } else {
+      limit = (groupLimit + targetBatchLatencyNs / handlerNsPerEnvelope) / 2;
+    }
+    groupLimit = (int) Math.max(minEnvelopes, Math.min(maxEnvelopes, limit));
+  }
+
+  // Batches up to max-envelopes while the handler is busy, then splits a batch above the current group limit into
+  // batches of at most the limit.
+  <E> SourceProvider<Offset, List<EventEnvelope<E>>> sourceProvider(SourceProvider<Offset, EventEnvelope<E>> sourceProvider) {
+    return new SourceProvider<>() {
+      @Override
+      public CompletionStage<Source<List<EventEnvelope<E>>, NotUsed>> source(Supplier<CompletionStage<Optional<Offset>>> offset) {
+        return sourceProvider.source(offset).thenApply(source -> source.batch(
+            maxEnvelopes,
+            eventEnvelope -> {
+              final List<EventEnvelope<E>> batch = new ArrayList<>();
+              batch.add(eventEnvelope);
+              return batch;
+            },
+            (batch, eventEnvelope) -> {
+              batch.add(eventEnvelope);
+              return batch;
+            })
+            .mapConcat(batch -> split(batch, groupLimit)));
+      }
+
+      @Override
+      public Offset extractOffset(List<EventEnvelope<E>> batch) {
+        return sourceProvider.extractOffset(batch.get(batch.size() - 1));
+      }
+
+      @Override
+      public long extractCreationTime(List<EventEnvelope<E>> batch) {
+        return sourceProvider.extractCreationTime(batch.get(batch.size() - 1));
+      }
+    };
+  }
+
+  static <T> List<List<T>> split(List<T> batch, int limit) {
+    if (batch.size() <= limit) {
+      return List.of(batch);
+    }
+    final List<List<T>> batches = new ArrayList<>();
+    for (int from = 0; from < batch.size(); from += limit) {
+      batches.add(batch.subList(from, Math.min(from + limit, batch.size())));
+    }
+    return batches;
+  }
+
+  <E, S extends JdbcSession> JdbcHandler<List<EventEnvelope<E>>, S> handler(JdbcHandler<List<EventEnvelope<E>>, S> handler) {
+    return new JdbcHandler<>() {
+      @Override
+      public void process(S session, List<EventEnvelope<E>> batch) throws Exception {
+        final var start = System.nanoTime();
+        handler.process(session, batch);
+        handled(batch.size(), System.nanoTime() - start, batch.get(batch.size() - 1).timestamp());
+      }
+
+      @Override
+      public void start() {
+        handler.start();
+      }
+
+      @Override
+      public void stop() {
+        handler.stop();
+      }
+    };
+  }
+}
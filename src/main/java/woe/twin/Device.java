@@ -14,9 +14,11 @@ import akka.persistence.typed.javadsl.Effect;
 import akka.persistence.typed.javadsl.EventHandler;
 import akka.persistence.typed.javadsl.EventSourcedBehavior;
 import akka.persistence.typed.javadsl.Recovery;
+import akka.persistence.typed.javadsl.RetentionCriteria;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 
 import java.util.*;
@@ -37,7 +39,7 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
   }
 
   private Device(String entityId, ClusterSharding clusterSharding, ActorContext<Device.Command> actorContext) {
-    super(PersistenceId.of(entityTypeKey.name(), entityId));
+    super(persistenceIdOf(entityId, actorContext.getSystem().settings().config().getBoolean(legacyPersistenceIdsSetting)));
     this.entityId = entityId;
     this.region = WorldMap.regionForEntityId(entityId);
     this.clusterSharding = clusterSharding;
@@ -65,7 +67,7 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
   private Effect<Event, State> onCreateCommand(State state, TelemetryCreateCommand telemetryCreateCommand) {
     if (state.isInactive()) {
       log().info("{}", telemetryCreateCommand);
-      return Effect().persist(new DeviceActivated(telemetryCreateCommand.region))
+      return Effect().persist(new DeviceActivated(telemetryCreateCommand.ingressMs))
           .thenReply(telemetryCreateCommand.replyTo, s -> new TelemetryCreateResponse(telemetryCreateCommand));
     } else {
       telemetryCreateCommand.replyTo.tell(new TelemetryCreateResponse(telemetryCreateCommand));
@@ -76,10 +78,10 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
   private Effect<Event, State> onDeleteCommand(State state, TelemetryDeleteCommand telemetryDeleteCommand) {
     if (state.isActive()) {
       if (state.isHappy()) {
-        return Effect().persist(new DeviceDeactivatedHappy(telemetryDeleteCommand.region))
+        return Effect().persist(new DeviceDeactivatedHappy(telemetryDeleteCommand.ingressMs))
             .thenReply(telemetryDeleteCommand.replyTo, s -> new TelemetryDeleteResponse(telemetryDeleteCommand));
       } else {
-        return Effect().persist(new DeviceDeactivatedSad(telemetryDeleteCommand.region))
+        return Effect().persist(new DeviceDeactivatedSad(telemetryDeleteCommand.ingressMs))
             .thenReply(telemetryDeleteCommand.replyTo, s -> new TelemetryDeleteResponse(telemetryDeleteCommand));
       }
     } else {
@@ -90,7 +92,7 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
 
   private Effect<Event, State> onHappyCommand(State state, TelemetryHappyCommand telemetryHappyCommand) {
     if (state.isActive() && state.isSad()) {
-      return Effect().persist(new DeviceMadeHappy(telemetryHappyCommand.region))
+      return Effect().persist(new DeviceMadeHappy(telemetryHappyCommand.ingressMs))
           .thenReply(telemetryHappyCommand.replyTo, s -> new TelemetryHappyResponse(telemetryHappyCommand));
     } else {
       telemetryHappyCommand.replyTo.tell(new TelemetryHappyResponse(telemetryHappyCommand));
@@ -100,7 +102,7 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
 
   private Effect<Event, State> onSadCommand(State state, TelemetrySadCommand telemetrySadCommand) {
     if (state.isActive() && state.isHappy()) {
-      return Effect().persist(new DeviceMadeSad(telemetrySadCommand.region))
+      return Effect().persist(new DeviceMadeSad(telemetrySadCommand.ingressMs))
           .thenReply(telemetrySadCommand.replyTo, s -> new TelemetrySadResponse(telemetrySadCommand));
     } else {
       telemetrySadCommand.replyTo.tell(new TelemetrySadResponse(telemetrySadCommand));
@@ -111,7 +113,7 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
   private Effect<Event, State> onPingCommand(State state, TelemetryPingCommand telemetryPingCommand) {
     if (state.isInactive()) {
       log().info("Ping create inactive device {}", telemetryPingCommand);
-      return Effect().persist(new DeviceActivated(telemetryPingCommand.region))
+      return Effect().persist(new DeviceActivated(telemetryPingCommand.ingressMs))
           .thenReply(telemetryPingCommand.replyTo, s -> new TelemetryPingResponse(telemetryPingCommand));
     } else {
       telemetryPingCommand.replyTo.tell(new TelemetryPingResponse(telemetryPingCommand));
@@ -127,7 +129,14 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
   @Override
   public Recovery recovery() {
     log().info("Start entity {}", entityId);
-    return Recovery.withSnapshotSelectionCriteria(SnapshotSelectionCriteria.none());
+    return isSnapshotEnabled(config())
+        ? Recovery.withSnapshotSelectionCriteria(SnapshotSelectionCriteria.latest())
+        : Recovery.withSnapshotSelectionCriteria(SnapshotSelectionCriteria.none());
+  }
+
+  @Override
+  public RetentionCriteria retentionCriteria() {
+    return retentionCriteriaFor(config());
   }
 
   @Override
@@ -150,13 +159,20 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
   interface Command extends CborSerializable {
   }
 
+  // The ingress time is when the telemetry request was received, set on sampled requests and 0 otherwise, see Freshness.
   public abstract static class TelemetryCommand implements Command {
     public final WorldMap.Region region;
     public final ActorRef<TelemetryResponse> replyTo;
+    final long ingressMs;
 
     public TelemetryCommand(WorldMap.Region region, ActorRef<TelemetryResponse> replyTo) {
+      this(region, replyTo, 0);
+    }
+
+    TelemetryCommand(WorldMap.Region region, ActorRef<TelemetryResponse> replyTo, long ingressMs) {
       this.region = region;
       this.replyTo = replyTo;
+      this.ingressMs = ingressMs;
     }
 
     @Override
@@ -183,6 +199,10 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     public TelemetryCreateCommand(@JsonProperty("region") WorldMap.Region region, @JsonProperty("replyTo") ActorRef<TelemetryResponse> replyTo) {
       super(region, replyTo);
     }
+
+    TelemetryCreateCommand(WorldMap.Region region, ActorRef<TelemetryResponse> replyTo, long ingressMs) {
+      super(region, replyTo, ingressMs);
+    }
   }
 
   public static class TelemetryDeleteCommand extends TelemetryCommand {
@@ -190,6 +210,10 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     public TelemetryDeleteCommand(@JsonProperty("region") WorldMap.Region region, @JsonProperty("replyTo") ActorRef<TelemetryResponse> replyTo) {
       super(region, replyTo);
     }
+
+    TelemetryDeleteCommand(WorldMap.Region region, ActorRef<TelemetryResponse> replyTo, long ingressMs) {
+      super(region, replyTo, ingressMs);
+    }
   }
 
   public static class TelemetryHappyCommand extends TelemetryCommand {
@@ -197,6 +221,10 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     public TelemetryHappyCommand(@JsonProperty("region") WorldMap.Region region, @JsonProperty("replyTo") ActorRef<TelemetryResponse> replyTo) {
       super(region, replyTo);
     }
+
+    TelemetryHappyCommand(WorldMap.Region region, ActorRef<TelemetryResponse> replyTo, long ingressMs) {
+      super(region, replyTo, ingressMs);
+    }
   }
 
   public static class TelemetrySadCommand extends TelemetryCommand {
@@ -204,6 +232,10 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     public TelemetrySadCommand(@JsonProperty("region") WorldMap.Region region, @JsonProperty("replyTo") ActorRef<TelemetryResponse> replyTo) {
       super(region, replyTo);
     }
+
+    TelemetrySadCommand(WorldMap.Region region, ActorRef<TelemetryResponse> replyTo, long ingressMs) {
+      super(region, replyTo, ingressMs);
+    }
   }
 
   public static class TelemetryPingCommand extends TelemetryCommand {
@@ -211,6 +243,10 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     public TelemetryPingCommand(@JsonProperty("region") WorldMap.Region region, @JsonProperty("replyTo") ActorRef<TelemetryResponse> replyTo) {
       super(region, replyTo);
     }
+
+    TelemetryPingCommand(WorldMap.Region region, ActorRef<TelemetryResponse> replyTo, long ingressMs) {
+      super(region, replyTo, ingressMs);
+    }
   }
 
   public enum Passivate implements Command {
@@ -220,58 +256,84 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
   interface Event extends CborSerializable {
   }
 
+  // Events only record the device's transition, the device's region is the region of its persistence id.
+  // Events of sampled requests also carry the request's ingress time.
   public abstract static class DeviceEvent implements Event {
-    final WorldMap.Region region;
+    final long ingressMs;
 
-    public DeviceEvent(WorldMap.Region region) {
-      this.region = region;
+    DeviceEvent(long ingressMs) {
+      this.ingressMs = ingressMs;
     }
 
     @Override
     public String toString() {
-      return String.format("%s[%s]", getClass().getSimpleName(), region);
+      return getClass().getSimpleName();
     }
   }
 
   public static class DeviceActivated extends DeviceEvent {
     @JsonCreator
-    public DeviceActivated(WorldMap.Region region) {
-      super(region);
+    public DeviceActivated() {
+      this(0);
+    }
+
+    DeviceActivated(long ingressMs) {
+      super(ingressMs);
     }
   }
 
   public static class DeviceDeactivatedHappy extends DeviceEvent {
     @JsonCreator
-    public DeviceDeactivatedHappy(WorldMap.Region region) {
-      super(region);
+    public DeviceDeactivatedHappy() {
+      this(0);
+    }
+
+    DeviceDeactivatedHappy(long ingressMs) {
+      super(ingressMs);
     }
   }
 
   public static class DeviceDeactivatedSad extends DeviceEvent {
     @JsonCreator
-    public DeviceDeactivatedSad(WorldMap.Region region) {
-      super(region);
+    public DeviceDeactivatedSad() {
+      this(0);
+    }
+
+    DeviceDeactivatedSad(long ingressMs) {
+      super(ingressMs);
     }
   }
 
   public static class DeviceMadeHappy extends DeviceEvent {
     @JsonCreator
-    public DeviceMadeHappy(WorldMap.Region region) {
-      super(region);
+    public DeviceMadeHappy() {
+      this(0);
+    }
+
+    DeviceMadeHappy(long ingressMs) {
+      super(ingressMs);
     }
   }
 
   public static class DeviceMadeSad extends DeviceEvent {
     @JsonCreator
-    public DeviceMadeSad(WorldMap.Region region) {
-      super(region);
+    public DeviceMadeSad() {
+      this(0);
+    }
+
+    DeviceMadeSad(long ingressMs) {
+      super(ingressMs);
     }
   }
 
   public static class DevicePinged extends DeviceEvent {
     @JsonCreator
-    public DevicePinged(WorldMap.Region region) {
-      super(region);
+    public DevicePinged() {
+      this(0);
+    }
+
+    DevicePinged(long ingressMs) {
+      super(ingressMs);
     }
   }
 
@@ -280,7 +342,8 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     boolean active;
     boolean happy;
 
-    State(WorldMap.Region region) {
+    @JsonCreator
+    State(@JsonProperty("region") WorldMap.Region region) {
       this.region = region;
     }
 
@@ -349,6 +412,19 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
       }
       return this;
     }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      State that = (State) o;
+      return active == that.active && happy == that.happy && region.equals(that.region);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(region, active, happy);
+    }
   }
 
   interface Response extends CborSerializable {
@@ -410,16 +486,54 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     }
   }
 
+  static final String legacyPersistenceIdsSetting = "woe.twin.device.legacy-persistence-ids";
+
+  // Devices persist under legacy entity ids until existing journals have been migrated or rebuilt.
+  static PersistenceId persistenceIdOf(String entityId, boolean legacyPersistenceIds) {
+    final var region = regionForEntityId(entityId);
+    return PersistenceId.of(entityTypeKey.name(), legacyPersistenceIds ? legacyEntityIdOf(region) : entityIdOf(region));
+  }
+
+  // The device's zoom 18 tile key from its persistence id, in either entity id format.
+  static long tileKeyForPersistenceId(String persistenceId) {
+    final var from = persistenceId.indexOf(PersistenceId.DefaultSeparator()) + 1;
+    return persistenceId.indexOf(':', from) < 0
+        ? tileKeyForEntityId(persistenceId, from)
+        : tileKeyOf(regionForLegacyEntityId(persistenceId.substring(from)));
+  }
+
+  static final String snapshotEveryNEventsSetting = "woe.twin.device.snapshot.every-n-events";
+  static final String snapshotKeepNSnapshotsSetting = "woe.twin.device.snapshot.keep-n-snapshots";
+  static final String snapshotDeleteEventsSetting = "woe.twin.device.snapshot.delete-events-on-snapshot";
+
+  static boolean isSnapshotEnabled(Config config) {
+    return config.getInt(snapshotEveryNEventsSetting) > 0;
+  }
+
+  // Recovery loads the latest snapshot and replays at most every-n-events events. Deleting the events
+  // covered by the oldest kept snapshot also bounds the journal rows per device.
+  static RetentionCriteria retentionCriteriaFor(Config config) {
+    if (!isSnapshotEnabled(config)) {
+      return RetentionCriteria.disabled();
+    }
+    final var retentionCriteria = RetentionCriteria.snapshotEvery(config.getInt(snapshotEveryNEventsSetting), config.getInt(snapshotKeepNSnapshotsSetting));
+    return config.getBoolean(snapshotDeleteEventsSetting) ? retentionCriteria.withDeleteEventsOnSnapshot() : retentionCriteria;
+  }
+
   static final String tagCountSetting = "woe.twin.projection.tag-count";
 
   private Set<String> tagsForEntity() {
-    final var entityTagsCount = actorContext.getSystem().settings().config().getInt(tagCountSetting);
-    return tagsFor(region, entityTagsCount);
+    final var config = actorContext.getSystem().settings().config();
+    return tagsFor(region, config.getInt(tagCountSetting), config.getBoolean(legacyPersistenceIdsSetting));
   }
 
-  static Set<String> tagsFor(WorldMap.Region region, int numberOfShards) {
-    final var entityId = entityIdOf(region);
-    return Collections.singleton("" + Math.abs(entityId.hashCode()) % numberOfShards);
+  // The tag hashes the entity id the device persists under, so a device's events keep their tag while it keeps its
+  // persistence id. Turning legacy persistence ids off moves the devices to new tags as well as new persistence ids.
+  static Set<String> tagsFor(WorldMap.Region region, int numberOfShards, boolean legacyPersistenceIds) {
+    final var entityId = legacyPersistenceIds ? legacyEntityIdOf(region) : entityIdOf(region);
+    // The remainder is taken before abs, Math.abs(Integer.MIN_VALUE) is negative. For every other hash this is the
+    // tag of abs before the remainder, so legacy id devices keep their tags. Hex id devices are tagged differently.
+    return Collections.singleton("" + Math.abs(entityId.hashCode() % numberOfShards));
   }
 
   static List<String> tagsAll(ActorSystem<?> actorSystem) {
@@ -429,6 +543,10 @@ class Device extends EventSourcedBehavior<Device.Command, Device.Event, Device.S
     return tags;
   }
 
+  private Config config() {
+    return actorContext.getSystem().settings().config();
+  }
+
   private Logger log() {
     return actorContext.getSystem().log();
   }
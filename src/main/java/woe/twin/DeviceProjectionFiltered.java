@@ -1,39 +1,32 @@
 package woe.twin;
 
-import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
-import javax.sql.DataSource;
-
-import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
 import akka.cluster.sharding.typed.ShardedDaemonProcessSettings;
 import akka.cluster.sharding.typed.javadsl.ShardedDaemonProcess;
-import akka.japi.function.Function;
-import akka.persistence.jdbc.query.javadsl.JdbcReadJournal;
 import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.projection.Projection;
 import akka.projection.ProjectionBehavior;
 import akka.projection.ProjectionId;
 import akka.projection.eventsourced.EventEnvelope;
-import akka.projection.eventsourced.javadsl.EventSourcedProvider;
-import akka.projection.javadsl.GroupedProjection;
 import akka.projection.javadsl.SourceProvider;
-import akka.projection.jdbc.JdbcSession;
 import akka.projection.jdbc.javadsl.JdbcHandler;
-import akka.projection.jdbc.javadsl.JdbcProjection;
-import woe.twin.Device.DeviceEvent;
+import woe.twin.RegionStore.DbSession;
+import woe.twin.RegionStore.DbSessionFactory;
+import woe.twin.RegionStore.RegionSummaries;
+import woe.twin.RegionStore.RegionSummary;
 
 class DeviceProjectionFiltered {
   static class DeviceEventHandler extends JdbcHandler<List<EventEnvelope<Device.Event>>, DbSession> {
@@ -42,75 +35,76 @@ class DeviceProjectionFiltered {
     private final int shardCount;
     private final int shardId;
     private final String zoomShardId;
-
-    DeviceEventHandler(int zoom, int shardCount, int shardId) {
+    private final RegionUpsert.WriterSelector writerSelector;
+    private final RegionSummaries regionSummaries;
+    private final Supplier<ProjectionShards.Handover> handover;
+    private final LongAdder shardEvents;
+    private final LongAdder handedOverEvents;
+    private final ProjectionMetrics projectionMetrics;
+    private final Freshness.Samples freshness = new Freshness.Samples();
+
+    DeviceEventHandler(int zoom, int shardCount, int shardId, Supplier<ProjectionShards.Handover> handover, RegionUpsert.WriterSelector writerSelector,
+        ProjectionMetrics projectionMetrics) {
       this.zoom = zoom;
       this.shardCount = shardCount;
       this.shardId = shardId;
+      this.handover = handover;
+      this.writerSelector = writerSelector;
+      this.projectionMetrics = projectionMetrics;
       zoomShardId = String.format("%d-%d", zoom, shardId);
+      regionSummaries = new RegionSummaries(zoom);
+      // Per shard event counts make skew across the shards of a zoom visible.
+      shardEvents = Metrics.counter(String.format("projection.region-zoom-summary.zoom-%d.shard-%d.events", zoom, shardId));
+      handedOverEvents = Metrics.counter(String.format("projection.region-zoom-summary.zoom-%d.shard-%d.handed-over-events", zoom, shardId));
     }
 
     @Override
     public void process(DbSession session, List<EventEnvelope<Device.Event>> eventEnvelopes) throws Exception {
-      var eventsFiltered = eventEnvelopes.stream()
-        .map(e -> (DeviceEvent) e.event())
-        .filter(e -> isInShard(e))
-        .collect(Collectors.toList());
-      processFiltered(session, eventsFiltered);
+      regionSummaries.clear();
+      freshness.clear();
+      final var handover = this.handover.get();
+      var eventsFiltered = 0;
+
+      for (EventEnvelope<Device.Event> eventEnvelope : eventEnvelopes) {
+        final var tileKey = WorldMap.tileKeyAtZoom(zoom, Device.tileKeyForPersistenceId(eventEnvelope.persistenceId()));
+        if (isInShard(tileKey)) {
+          if (handover.counted(tileKey, ((Sequence) eventEnvelope.offset()).value())) {
+            handedOverEvents.increment();
+          } else {
+            regionSummaries.add(eventEnvelope.event(), tileKey);
+            freshness.add(eventEnvelope);
+            eventsFiltered++;
+          }
+        }
+      }
+      shardEvents.add(eventsFiltered);
+      projectionMetrics.eventsFilteredOut.add(eventEnvelopes.size() - eventsFiltered);
+      processFiltered(session, regionSummaries, eventsFiltered, eventEnvelopes.get(eventEnvelopes.size() - 1).timestamp());
+      freshness.afterCommit(session::afterCommit, zoom, zoom);
     }
 
-    private void processFiltered(DbSession session, List<DeviceEvent> events) {
-      var start = System.nanoTime();
-      var connection = session.connection;
+    private void processFiltered(DbSession session, RegionSummaries regionSummaries, int eventCount, long eventTimestamp) {
+      final var start = System.nanoTime();
+      final var summaries = regionSummaries.asList();
+      if (projectionMetrics.sampleSql()) {
+        log.info("{} {}", zoomShardId, RegionUpsert.sql(summaries));
+      }
 
-      try (var statement = connection.createStatement()) {
-        var sql = sql(summarize(events, zoom));
-        log.info("zoom {}, shardId {} {}", zoom, shardId, sql);
-        statement.executeUpdate(sql);
+      try {
+        final var writer = writerSelector.select(eventTimestamp);
+        final var sqlStart = System.nanoTime();
+        final var rows = RegionUpsert.write(session.connection, writer, RegionUpsert.rows(summaries), () -> RegionUpsert.sql(summaries));
+        projectionMetrics.written(System.nanoTime() - sqlStart, summaries.size(), rows);
       } catch (SQLException e) {
         log.error(zoomShardId, e);
         throw new RuntimeException(String.format("Event handler failure %s", zoomShardId));
       }
 
-      log.debug("{} processed {}, {}ns", zoomShardId, events.size(), String.format("%,d", System.nanoTime() - start));
-    }
-
-    private List<RegionSummary> summarize(List<DeviceEvent> eventEnvelopes, int zoom) {
-      final var regionSummaries = new RegionSummaries(zoom);
-
-      eventEnvelopes.forEach(event-> regionSummaries.add(event));
-
-      return regionSummaries.asList();
-    }
-
-    static String sql(List<RegionSummary> regionSummaries) {
-      final var sql = new StringBuilder();
-      String delimiter = "";
-
-      sql.append("insert into woe_twin_region");
-      sql.append(" (zoom, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng, device_count, happy_count, sad_count)");
-      sql.append(" values");
-
-      for (RegionSummary regionSummary : regionSummaries) {
-        final var region = regionSummary.region;
-        sql.append(delimiter);
-        sql.append(String.format("%n (%d, %1.9f, %1.9f, %1.9f, %1.9f, %d, %d, %d)",
-            region.zoom, region.topLeft.lat, region.topLeft.lng, region.botRight.lat, region.botRight.lng,
-            regionSummary.deviceCount, regionSummary.happyCount, regionSummary.sadCount));
-        delimiter = ",";
-      }
-
-      sql.append(" on conflict on constraint woe_twin_region_pkey");
-      sql.append(" do update set");
-      sql.append(" device_count = woe_twin_region.device_count + excluded.device_count,");
-      sql.append(" happy_count = woe_twin_region.happy_count + excluded.happy_count,");
-      sql.append(" sad_count = woe_twin_region.sad_count + excluded.sad_count");
-
-      return sql.toString();
+      log.debug("{} processed {}, {}ns", zoomShardId, eventCount, String.format("%,d", System.nanoTime() - start));
     }
 
-    private boolean isInShard(DeviceEvent deviceEvent) {
-      return WorldMap.entityIdOf(WorldMap.regionAtLatLng(zoom, WorldMap.atCenter(deviceEvent.region))).hashCode() % shardCount == shardId;
+    private boolean isInShard(long tileKey) {
+      return ProjectionShards.shardOf(tileKey, shardCount) == shardId;
     }
 
     @Override
@@ -126,205 +120,72 @@ class DeviceProjectionFiltered {
     }
   }
 
-  static class DbSession implements JdbcSession {
-    final Connection connection;
-
-    DbSession(DataSource dataSource) {
-      try {
-        connection = dataSource.getConnection();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
-
-    @Override
-    public <Result> Result withConnection(Function<Connection, Result> func) throws Exception {
-      return func.apply(connection);
-    }
-
-    @Override
-    public void commit() throws SQLException {
-      connection.commit();
-    }
-
-    @Override
-    public void rollback() throws SQLException {
-      connection.rollback();
-    }
-
-    @Override
-    public void close() throws SQLException {
-      connection.close();
-    }
-  }
-
-  static class DbSessionFactory {
-    private final DataSource dataSource;
-
-    DbSessionFactory(ActorSystem<?> actorSystem) {
-      final var dbUrl = actorSystem.settings().config().getString("woe.twin.sql.url");
-      final var username = actorSystem.settings().config().getString("woe.twin.sql.username");
-      final var password = actorSystem.settings().config().getString("woe.twin.sql.password");
-      final var maxPoolSize = actorSystem.settings().config().getInt("woe.twin.sql.max-pool-size");
-
-      final HikariConfig config = new HikariConfig();
-      config.setJdbcUrl(dbUrl);
-      config.setUsername(username);
-      config.setPassword(password);
-      config.setMaximumPoolSize(maxPoolSize);
-      config.setAutoCommit(false);
-
-      dataSource = new HikariDataSource(config);
-      actorSystem.log().debug("Datasource {}, pool size {}", dbUrl, maxPoolSize);
-    }
-
-    DbSession newInstance() {
-      return new DbSession(dataSource);
-    }
-  }
-
   static void init(ActorSystem<?> actorSystem) {
     final var shards = actorSystem.settings().config().getInt("woe.twin.projection.shards");
     final var dbSessionFactory = new DbSessionFactory(actorSystem);
     final var tags = Device.tagsAll(actorSystem);
+    final var notifiedEventsByTag = NotifiedEventsByTag.of(actorSystem);
+    // The zoom and shard projections on this node read the tag once, see SharedEventsByTag.
+    final var sharedEventsByTag = actorSystem.settings().config().getBoolean("woe.twin.projection.shared-events-by-tag.enabled")
+        ? Optional.of(SharedEventsByTag.of(actorSystem, notifiedEventsByTag))
+        : Optional.<SharedEventsByTag>empty();
 
-    IntStream.rangeClosed(3, 18).forEach(zoom -> init(actorSystem, dbSessionFactory, zoom, shards, tags.get(0)));
+    IntStream.rangeClosed(3, 18).forEach(zoom -> init(actorSystem, dbSessionFactory, notifiedEventsByTag, sharedEventsByTag, zoom, shards, tags.get(0)));
   }
 
-  private static void init(ActorSystem<?> actorSystem, DbSessionFactory dbSessionFactory, int zoom, int shards, String tag) {
+  private static void init(ActorSystem<?> actorSystem, DbSessionFactory dbSessionFactory, Optional<NotifiedEventsByTag> notifiedEventsByTag,
+      Optional<SharedEventsByTag> sharedEventsByTag, int zoom, int shards, String tag) {
     ShardedDaemonProcess.get(actorSystem).init(
       ProjectionBehavior.Command.class,
       "region-summary-projection-" + zoom,
       shards,
-      shardId -> ProjectionBehavior.create(create(actorSystem, dbSessionFactory, zoom, shards, shardId, tag)),
+      shardId -> ProjectionBehavior.create(create(actorSystem, dbSessionFactory, notifiedEventsByTag, sharedEventsByTag, zoom, shards, shardId, tag)),
       ShardedDaemonProcessSettings.create(actorSystem),
       Optional.of(ProjectionBehavior.stopMessage())
     );
   }
 
-  private static GroupedProjection<Offset, EventEnvelope<Device.Event>>
-      create(ActorSystem<?> actorSystem, DbSessionFactory dbSessionFactory, int zoom, int shards, int shardId, String tag) {
-    final var groupAfterEnvelopes = actorSystem.settings().config().getInt("woe.twin.projection.group-after-envelopes");
-    final var groupAfterDuration = actorSystem.settings().config().getDuration("woe.twin.projection.group-after-duration");
-
-    final SourceProvider<Offset, EventEnvelope<Device.Event>> sourceProvider =
-      EventSourcedProvider.eventsByTag(actorSystem, JdbcReadJournal.Identifier(), tag);
-
-    return JdbcProjection.groupedWithin(
-      ProjectionId.of("region-zoom-summary", String.format("zoom-%d-shard-%d", zoom, shardId)),
+  private static Projection<?> create(ActorSystem<?> actorSystem, DbSessionFactory dbSessionFactory, Optional<NotifiedEventsByTag> notifiedEventsByTag,
+      Optional<SharedEventsByTag> sharedEventsByTag, int zoom, int shards, int shardId, String tag) {
+    final var projectionId = ProjectionId.of("region-zoom-summary", ProjectionShards.projectionKey(zoom, shards, shardId));
+    final var offsetStoreTable = actorSystem.settings().config().getString("akka.projection.jdbc.offset-store.table");
+    final var handover = new AtomicReference<>(ProjectionShards.Handover.none);
+    final SourceProvider<Offset, EventEnvelope<Device.Event>> sourceProvider = ProjectionShards.withHandover(
+      sharedEventsByTag.map(shared -> shared.sourceProvider(tag))
+        .orElseGet(() -> RegionProjection.eventsByTag(actorSystem, notifiedEventsByTag, tag)),
+      () -> loadHandover(dbSessionFactory, offsetStoreTable, projectionId.name(), zoom, shards),
+      actorSystem.dispatchers().lookup(DispatcherSelector.fromConfig("akka.projection.jdbc.blocking-jdbc-dispatcher")),
+      loaded -> {
+        if (!loaded.isNone()) {
+          actorSystem.log().info("{} handover from {}", projectionId, loaded);
+        }
+        handover.set(loaded);
+      });
+
+    return RegionProjection.create(
+      actorSystem,
+      projectionId,
       sourceProvider,
       dbSessionFactory::newInstance,
-      () -> new DeviceEventHandler(zoom, shards, shardId),
-      actorSystem
-    ).withGroup(groupAfterEnvelopes, groupAfterDuration);
-  }
-
-  static class RegionSummary {
-    public final WorldMap.Region region;
-    public int deviceCount;
-    public int happyCount;
-    public int sadCount;
-
-    RegionSummary(WorldMap.Region region, int deviceCount, int happyCount, int sadCount) {
-      this.region = region;
-      this.deviceCount = deviceCount;
-      this.happyCount = happyCount;
-      this.sadCount = sadCount;
-    }
-
-    RegionSummary(WorldMap.Region region) {
-      this(region, 0, 0, 0);
-    }
-
-    @Override
-    public String toString() {
-      return String.format("%s[%s, %d, %d, %d]", getClass().getSimpleName(), region, deviceCount, happyCount, sadCount);
-    }
-
-    RegionSummary activated() {
-      deviceCount++;
-      happyCount++;
-      return this;
-    }
-
-    RegionSummary deactivatedHappy() {
-      deviceCount--;
-      happyCount--;
-      return this;
-    }
-
-    RegionSummary deactivatedSad() {
-      deviceCount--;
-      sadCount--;
-      return this;
-    }
-
-    RegionSummary madeHappy() {
-      happyCount++;
-      sadCount--;
-      return this;
-    }
-
-    RegionSummary madeSad() {
-      happyCount--;
-      sadCount++;
-      return this;
-    }
+      projectionMetrics -> new DeviceEventHandler(zoom, shards, shardId, handover::get,
+          RegionUpsert.WriterSelector.of(String.format("%d-%d", zoom, shardId), actorSystem.settings().config()), projectionMetrics)
+    );
   }
 
-  static class RegionSummaries {
-    private final int zoom;
-    private final Map<WorldMap.Region, RegionSummary> regionSummaries = new HashMap<>();
-
-    RegionSummaries(int zoom) {
-      this.zoom = zoom;
-    }
-
-    void add(Device.Event event) {
-      if (event instanceof Device.DeviceActivated) {
-        activated((Device.DeviceActivated) event);
-      } else if (event instanceof Device.DeviceDeactivatedHappy) {
-        deactivatedHappy((Device.DeviceDeactivatedHappy) event);
-      } else if (event instanceof Device.DeviceDeactivatedSad) {
-        deactivatedSad((Device.DeviceDeactivatedSad) event);
-      } else if (event instanceof Device.DeviceMadeHappy) {
-        madeHappy((Device.DeviceMadeHappy) event);
-      } else if (event instanceof Device.DeviceMadeSad) {
-        madeSad((Device.DeviceMadeSad) event);
+  private static ProjectionShards.Handover loadHandover(DbSessionFactory dbSessionFactory, String offsetStoreTable, String projectionName, int zoom, int shards) {
+    final var session = dbSessionFactory.newInstance();
+    try {
+      final var handover = ProjectionShards.loadHandover(session.connection, offsetStoreTable, projectionName, zoom, shards);
+      session.commit();
+      return handover;
+    } catch (SQLException e) {
+      throw new RuntimeException(String.format("Handover load failure zoom %d", zoom), e);
+    } finally {
+      try {
+        session.close();
+      } catch (SQLException e) {
+        LoggerFactory.getLogger(DeviceProjectionFiltered.class).warn("Handover session close failed", e);
       }
     }
-
-    private void activated(Device.DeviceActivated event) {
-      regionSummaries.compute(eventToZoomRegion(event), (region, regionSummary) ->
-          regionSummary == null ? (new RegionSummary(region)).activated() : regionSummary.activated());
-    }
-
-    private void deactivatedHappy(Device.DeviceDeactivatedHappy event) {
-      regionSummaries.compute(eventToZoomRegion(event), (region, regionSummary) ->
-          regionSummary == null ? (new RegionSummary(region)).deactivatedHappy() : regionSummary.deactivatedHappy());
-    }
-
-    private void deactivatedSad(Device.DeviceDeactivatedSad event) {
-      regionSummaries.compute(eventToZoomRegion(event), (region, regionSummary) ->
-          regionSummary == null ? (new RegionSummary(region)).deactivatedSad() : regionSummary.deactivatedSad());
-    }
-
-    private void madeHappy(Device.DeviceMadeHappy event) {
-      regionSummaries.compute(eventToZoomRegion(event), (region, regionSummary) ->
-          regionSummary == null ? (new RegionSummary(region)).madeHappy() : regionSummary.madeHappy());
-    }
-
-    private void madeSad(Device.DeviceMadeSad event) {
-      regionSummaries.compute(eventToZoomRegion(event), (region, regionSummary) ->
-          regionSummary == null ? (new RegionSummary(region)).madeSad() : regionSummary.madeSad());
-    }
-
-    List<RegionSummary> asList() {
-      return new ArrayList<>(regionSummaries.values());
-    }
-
-    private WorldMap.Region eventToZoomRegion(Device.DeviceEvent event) {
-      return WorldMap.regionAtLatLng(zoom, WorldMap.atCenter(event.region));
-    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,272 @@
+package woe.twin;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.sharding.typed.ShardedDaemonProcessSettings;
+import akka.cluster.sharding.typed.javadsl.ShardedDaemonProcess;
+import akka.persistence.query.Offset;
+import akka.projection.Projection;
+import akka.projection.ProjectionBehavior;
+import akka.projection.ProjectionId;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.javadsl.SourceProvider;
+import akka.projection.jdbc.javadsl.JdbcHandler;
+
+import woe.twin.RegionStore.DbSession;
+import woe.twin.RegionStore.DbSessionFactory;
+import woe.twin.RegionStore.RegionSummaries;
+import woe.twin.RegionStore.RegionSummary;
+
+/* The event projection only writes the zoom 18 regions, and the same counts as deltas in woe_twin_region_delta.
+ * A scheduled rollup claims the deltas and folds them level by level, zoom 18 into 17 and so on down to 3,
+ * then upserts the coarser regions. Many deltas under one parent become one row update per rollup.
+ * Zoom 18 counts are current once a batch commits, coarser zooms trail by up to a rollup interval.
+ */
+class DeviceProjectionRollup {
+  private static final Logger log = LoggerFactory.getLogger(DeviceProjectionRollup.class);
+  private static final int zoomMin = 3;
+
+  static class DeviceEventHandler extends JdbcHandler<List<EventEnvelope<Device.Event>>, DbSession> {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final String tag;
+    private final RegionUpsert.WriterSelector writerSelector;
+    private final RegionSummaries regionSummaries = new RegionSummaries(WorldMap.zoomMax);
+    private final ProjectionMetrics projectionMetrics;
+    private final Freshness.Samples freshness = new Freshness.Samples();
+
+    DeviceEventHandler(String tag, RegionUpsert.WriterSelector writerSelector, ProjectionMetrics projectionMetrics) {
+      this.tag = tag;
+      this.writerSelector = writerSelector;
+      this.projectionMetrics = projectionMetrics;
+
+      log.debug("Initialized {}", tag);
+    }
+
+    // The zoom 18 upsert and its deltas are written in the same transaction as the offset.
+    @Override
+    public void process(DbSession session, List<EventEnvelope<Device.Event>> eventEnvelopes) {
+      final long start = System.nanoTime();
+      regionSummaries.clear();
+      freshness.clear();
+      eventEnvelopes.forEach(eventEnvelope -> {
+        regionSummaries.add(eventEnvelope);
+        freshness.add(eventEnvelope);
+      });
+      final List<RegionSummary> summaries = regionSummaries.asList();
+      if (summaries.isEmpty()) {
+        RegionUpsert.statementsAvoided.increment();
+        return;
+      }
+      if (projectionMetrics.sampleSql()) {
+        log.info("{} {}", tag, RegionUpsert.sql(summaries));
+        log.info("{} {}", tag, deltaSql(summaries));
+      }
+
+      try (Statement statement = session.connection.createStatement()) {
+        final var sqlStart = System.nanoTime();
+        final var rows = upsert(session, writerSelector.select(eventEnvelopes.get(eventEnvelopes.size() - 1).timestamp()), summaries)
+            + statement.executeUpdate(deltaSql(summaries));
+        projectionMetrics.written(System.nanoTime() - sqlStart, summaries.size(), rows);
+      } catch (SQLException e) {
+        log.error(tag, e);
+        throw new RuntimeException(String.format("Event handler failure %s", tag), e);
+      }
+
+      freshness.afterCommit(session::afterCommit, WorldMap.zoomMax, WorldMap.zoomMax);
+      log.debug("{} processed {}, regions {}, {}ns", tag, eventEnvelopes.size(), summaries.size(), String.format("%,d", System.nanoTime() - start));
+    }
+
+    static String deltaSql(List<RegionSummary> regionSummaries) {
+      final StringBuilder sql = new StringBuilder();
+      String delimiter = "";
+
+      sql.append("insert into woe_twin_region_delta");
+      sql.append(" (z_order, device_count, happy_count, sad_count)");
+      sql.append(" values");
+
+      for (RegionSummary regionSummary : regionSummaries) {
+        sql.append(delimiter);
+        sql.append(String.format("%n (%d, %d, %d, %d)",
+            WorldMap.zOrderOf(regionSummary.region.tileKey()), regionSummary.deviceCount, regionSummary.happyCount, regionSummary.sadCount));
+        delimiter = ",";
+      }
+
+      return sql.toString();
+    }
+  }
+
+  // Claims the oldest deltas, folds them into zoom 17 to 3 and upserts the results, all in one transaction.
+  static int rollup(DbSession session, RegionUpsert.Writer writer, int maxDeltas) throws SQLException {
+    final Map<Long, RegionSummary> deltas = new TreeMap<>();
+    int count = 0;
+    try (Statement statement = session.connection.createStatement()) {
+      try (ResultSet resultSet = statement.executeQuery(claimSql(maxDeltas))) {
+        for (; resultSet.next(); count++) {
+          add(deltas, WorldMap.zoomMax, resultSet.getLong(1), resultSet.getInt(2), resultSet.getInt(3), resultSet.getInt(4));
+        }
+      }
+      if (count > 0) {
+        upsert(session, writer, fold(deltas));
+      }
+      session.commit();
+    } catch (SQLException e) {
+      session.rollback();
+      throw e;
+    }
+    return count;
+  }
+
+  private static long upsert(DbSession session, RegionUpsert.Writer writer, List<RegionSummary> summaries) throws SQLException {
+    return RegionUpsert.write(session.connection, writer, RegionUpsert.rows(summaries),
+        () -> RegionUpsert.sql(summaries));
+  }
+
+  static String claimSql(int maxDeltas) {
+    return String.format("delete from woe_twin_region_delta"
+        + " where delta_id in (select delta_id from woe_twin_region_delta order by delta_id limit %d for update skip locked)"
+        + " returning z_order, device_count, happy_count, sad_count", maxDeltas);
+  }
+
+  /* Folds zoom 18 summaries keyed by Z-order into their zoom 17 to 3 ancestors.
+   * Zoom 3 and finer tiles split 2 x 2, so a parent's Z-order is its child's Z-order shifted 2 bits.
+   * The result is in (zoom, z_order) order, the woe_twin_region primary key order. Parents whose children's deltas
+   * cancel out are not in the result.
+   */
+  static List<RegionSummary> fold(Map<Long, RegionSummary> zoom18) {
+    final List<Map<Long, RegionSummary>> levels = new ArrayList<>();
+    Map<Long, RegionSummary> children = zoom18;
+    for (int zoom = WorldMap.zoomMax - 1; zoom >= zoomMin; zoom--) {
+      final Map<Long, RegionSummary> parents = new TreeMap<>();
+      for (Map.Entry<Long, RegionSummary> child : children.entrySet()) {
+        final var summary = child.getValue();
+        add(parents, zoom, child.getKey() >>> 2, summary.deviceCount, summary.happyCount, summary.sadCount);
+      }
+      levels.add(0, parents);
+      children = parents;
+    }
+
+    final List<RegionSummary> regionSummaries = new ArrayList<>();
+    levels.forEach(level -> level.values().forEach(regionSummary -> {
+      if (regionSummary.isZero()) {
+        RegionUpsert.zeroRowsDropped.increment();
+      } else {
+        regionSummaries.add(regionSummary);
+      }
+    }));
+    return regionSummaries;
+  }
+
+  private static void add(Map<Long, RegionSummary> summaries, int zoom, long zOrder, int deviceCount, int happyCount, int sadCount) {
+    final var summary = summaries.computeIfAbsent(zOrder, z -> new RegionSummary(WorldMap.regionForTileKey(WorldMap.tileKeyForZOrder(zoom, z))));
+    summary.deviceCount += deviceCount;
+    summary.happyCount += happyCount;
+    summary.sadCount += sadCount;
+  }
+
+  interface RollupCommand {}
+
+  enum Tick implements RollupCommand {
+    INSTANCE
+  }
+
+  static final class RolledUp implements RollupCommand {
+    final int deltas;
+
+    RolledUp(int deltas) {
+      this.deltas = deltas;
+    }
+  }
+
+  // Runs one rollup at a time, the next starts an interval after the previous one ends, or at once while deltas remain.
+  static Behavior<RollupCommand> rollupBehavior(DbSessionFactory dbSessionFactory, RegionUpsert.Writer writer, Duration interval, int maxDeltas) {
+    return Behaviors.setup(context -> Behaviors.withTimers(timers -> {
+      final var dispatcher = context.getSystem().dispatchers().lookup(DispatcherSelector.fromConfig("akka.projection.jdbc.blocking-jdbc-dispatcher"));
+      timers.startSingleTimer(Tick.INSTANCE, interval);
+
+      return Behaviors.receive(RollupCommand.class)
+          .onMessageEquals(Tick.INSTANCE, () -> {
+            context.pipeToSelf(CompletableFuture.supplyAsync(() -> {
+              final DbSession session = dbSessionFactory.newInstance();
+              try {
+                return rollup(session, writer, maxDeltas);
+              } catch (SQLException e) {
+                throw new RuntimeException("Region rollup failure", e);
+              } finally {
+                try {
+                  session.close();
+                } catch (SQLException e) {
+                  log.warn("Region rollup session close failed", e);
+                }
+              }
+            }, dispatcher), (deltas, e) -> {
+              if (e != null) {
+                context.getLog().warn("Region rollup failed, retry in {}", interval, e);
+                return new RolledUp(0);
+              }
+              return new RolledUp(deltas);
+            });
+            return Behaviors.same();
+          })
+          .onMessage(RolledUp.class, rolledUp -> {
+            context.getLog().debug("Rolled up {} deltas", rolledUp.deltas);
+            timers.startSingleTimer(Tick.INSTANCE, rolledUp.deltas < maxDeltas ? interval : Duration.ZERO);
+            return Behaviors.same();
+          })
+          .build();
+    }));
+  }
+
+  static void init(ActorSystem<?> actorSystem) {
+    final var dbSessionFactory = new DbSessionFactory(actorSystem);
+    final var tags = Device.tagsAll(actorSystem);
+    final var interval = actorSystem.settings().config().getDuration("woe.twin.projection.rollup.interval");
+    final var maxDeltas = actorSystem.settings().config().getInt("woe.twin.projection.rollup.max-deltas");
+    final var writer = RegionUpsert.writerFor(actorSystem.settings().config());
+    final var notifiedEventsByTag = NotifiedEventsByTag.of(actorSystem);
+
+    ShardedDaemonProcess.get(actorSystem).init(
+        ProjectionBehavior.Command.class,
+        "region-summary-rollup-projection",
+        tags.size(),
+        id -> ProjectionBehavior.create(create(actorSystem, dbSessionFactory, notifiedEventsByTag, tags.get(id))),
+        ShardedDaemonProcessSettings.create(actorSystem),
+        Optional.of(ProjectionBehavior.stopMessage())
+    );
+
+    ShardedDaemonProcess.get(actorSystem).init(
+        RollupCommand.class,
+        "region-summary-rollup",
+        1,
+        id -> rollupBehavior(dbSessionFactory, writer, interval, maxDeltas)
+    );
+  }
+
+  private static Projection<?> create(ActorSystem<?> actorSystem, DbSessionFactory dbSessionFactory, Optional<NotifiedEventsByTag> notifiedEventsByTag, String tag) {
+    final SourceProvider<Offset, EventEnvelope<Device.Event>> sourceProvider =
+        RegionProjection.eventsByTag(actorSystem, notifiedEventsByTag, tag);
+
+    return RegionProjection.create(
+        actorSystem,
+        ProjectionId.of("region-rollup-summary", tag),
+        sourceProvider,
+        dbSessionFactory::newInstance,
+        projectionMetrics -> new DeviceEventHandler(tag, RegionUpsert.WriterSelector.of(tag, actorSystem.settings().config()), projectionMetrics)
+    );
+  }
+}
@@ -0,0 +1,257 @@
+package woe.twin;
+
+import akka.actor.ExtendedActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorRefResolver;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static woe.twin.WorldMap.*;
+
+/**
+ * Fixed layout binary serializer for the Device protocol and map regions.
+ * <p>
+ * Map grid regions are written as a flag byte and the region's tile key, any other region as a flag byte, the zoom,
+ * and the corner lat/lngs. Responses only carry the region of the originating command, the command's replyTo is
+ * not sent back to the sender. Events are empty, the manifest is the event, except the events of requests sampled for
+ * freshness, which are the 8 byte ingress time. Events written before events were slim carry the device's region,
+ * 9 or 37 bytes, it is skipped on read. Commands end with the ingress time, commands sent by nodes without it are
+ * read with no ingress time. Manifests are stable short names, they must never be reused for another layout.
+ * <p>
+ * Journal rows and snapshots written before this serializer was bound keep the jackson-cbor serializer id, so they
+ * are still read by jackson-cbor.
+ */
+class DeviceSerializer extends SerializerWithStringManifest {
+  static final int identifier = 1600001;
+
+  private static final String telemetryCreateCommandManifest = "TC";
+  private static final String telemetryDeleteCommandManifest = "TD";
+  private static final String telemetryHappyCommandManifest = "TH";
+  private static final String telemetrySadCommandManifest = "TS";
+  private static final String telemetryPingCommandManifest = "TP";
+  private static final String passivateManifest = "P";
+  private static final String deviceActivatedManifest = "EA";
+  private static final String deviceDeactivatedHappyManifest = "EDH";
+  private static final String deviceDeactivatedSadManifest = "EDS";
+  private static final String deviceMadeHappyManifest = "EMH";
+  private static final String deviceMadeSadManifest = "EMS";
+  private static final String devicePingedManifest = "EP";
+  private static final String telemetryCreateResponseManifest = "RC";
+  private static final String telemetryDeleteResponseManifest = "RD";
+  private static final String telemetryHappyResponseManifest = "RH";
+  private static final String telemetrySadResponseManifest = "RS";
+  private static final String telemetryPingResponseManifest = "RP";
+  private static final String stateManifest = "S";
+  private static final String regionManifest = "R";
+
+  private static final byte[] empty = new byte[0];
+  private static final byte tileRegion = 0;
+  private static final byte cornersRegion = 1;
+  private static final int tileRegionSize = 1 + 8;
+  private static final int cornersRegionSize = 1 + 4 + 4 * 8;
+  private static final int ingressSize = 8;
+
+  private final ExtendedActorSystem system;
+  private volatile ActorRefResolver actorRefResolver;
+
+  DeviceSerializer(ExtendedActorSystem system) {
+    this.system = system;
+  }
+
+  @Override
+  public int identifier() {
+    return identifier;
+  }
+
+  @Override
+  public String manifest(Object o) {
+    if (o instanceof Device.TelemetryCreateCommand) return telemetryCreateCommandManifest;
+    if (o instanceof Device.TelemetryDeleteCommand) return telemetryDeleteCommandManifest;
+    if (o instanceof Device.TelemetryHappyCommand) return telemetryHappyCommandManifest;
+    if (o instanceof Device.TelemetrySadCommand) return telemetrySadCommandManifest;
+    if (o instanceof Device.TelemetryPingCommand) return telemetryPingCommandManifest;
+    if (o instanceof Device.Passivate) return passivateManifest;
+    if (o instanceof Device.DeviceActivated) return deviceActivatedManifest;
+    if (o instanceof Device.DeviceDeactivatedHappy) return deviceDeactivatedHappyManifest;
+    if (o instanceof Device.DeviceDeactivatedSad) return deviceDeactivatedSadManifest;
+    if (o instanceof Device.DeviceMadeHappy) return deviceMadeHappyManifest;
+    if (o instanceof Device.DeviceMadeSad) return deviceMadeSadManifest;
+    if (o instanceof Device.DevicePinged) return devicePingedManifest;
+    if (o instanceof Device.TelemetryCreateResponse) return telemetryCreateResponseManifest;
+    if (o instanceof Device.TelemetryDeleteResponse) return telemetryDeleteResponseManifest;
+    if (o instanceof Device.TelemetryHappyResponse) return telemetryHappyResponseManifest;
+    if (o instanceof Device.TelemetrySadResponse) return telemetrySadResponseManifest;
+    if (o instanceof Device.TelemetryPingResponse) return telemetryPingResponseManifest;
+    if (o instanceof Device.State) return stateManifest;
+    if (o instanceof Region) return regionManifest;
+    throw new IllegalArgumentException(String.format("Can't serialize object of type %s in %s", o.getClass(), getClass().getSimpleName()));
+  }
+
+  @Override
+  public byte[] toBinary(Object o) {
+    if (o instanceof Device.TelemetryCommand) {
+      return telemetryCommandToBinary((Device.TelemetryCommand) o);
+    } else if (o instanceof Device.Passivate) {
+      return empty;
+    } else if (o instanceof Device.DeviceEvent) {
+      final var ingressMs = ((Device.DeviceEvent) o).ingressMs;
+      return ingressMs == 0 ? empty : ByteBuffer.allocate(ingressSize).putLong(ingressMs).array();
+    } else if (o instanceof Device.TelemetryResponse) {
+      return regionToBinary(((Device.TelemetryResponse) o).telemetryCommand.region);
+    } else if (o instanceof Device.State) {
+      return stateToBinary((Device.State) o);
+    } else if (o instanceof Region) {
+      return regionToBinary((Region) o);
+    }
+    throw new IllegalArgumentException(String.format("Can't serialize object of type %s in %s", o.getClass(), getClass().getSimpleName()));
+  }
+
+  @Override
+  public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+    final var buffer = ByteBuffer.wrap(bytes);
+    switch (manifest) {
+      case telemetryCreateCommandManifest:
+        return new Device.TelemetryCreateCommand(readRegion(buffer), readActorRef(buffer), readIngressMs(buffer));
+      case telemetryDeleteCommandManifest:
+        return new Device.TelemetryDeleteCommand(readRegion(buffer), readActorRef(buffer), readIngressMs(buffer));
+      case telemetryHappyCommandManifest:
+        return new Device.TelemetryHappyCommand(readRegion(buffer), readActorRef(buffer), readIngressMs(buffer));
+      case telemetrySadCommandManifest:
+        return new Device.TelemetrySadCommand(readRegion(buffer), readActorRef(buffer), readIngressMs(buffer));
+      case telemetryPingCommandManifest:
+        return new Device.TelemetryPingCommand(readRegion(buffer), readActorRef(buffer), readIngressMs(buffer));
+      case passivateManifest:
+        return Device.Passivate.INSTANCE;
+      case deviceActivatedManifest:
+        return new Device.DeviceActivated(eventIngressMs(bytes));
+      case deviceDeactivatedHappyManifest:
+        return new Device.DeviceDeactivatedHappy(eventIngressMs(bytes));
+      case deviceDeactivatedSadManifest:
+        return new Device.DeviceDeactivatedSad(eventIngressMs(bytes));
+      case deviceMadeHappyManifest:
+        return new Device.DeviceMadeHappy(eventIngressMs(bytes));
+      case deviceMadeSadManifest:
+        return new Device.DeviceMadeSad(eventIngressMs(bytes));
+      case devicePingedManifest:
+        return new Device.DevicePinged(eventIngressMs(bytes));
+      case telemetryCreateResponseManifest:
+        return new Device.TelemetryCreateResponse(new Device.TelemetryCreateCommand(readRegion(buffer), null));
+      case telemetryDeleteResponseManifest:
+        return new Device.TelemetryDeleteResponse(new Device.TelemetryDeleteCommand(readRegion(buffer), null));
+      case telemetryHappyResponseManifest:
+        return new Device.TelemetryHappyResponse(new Device.TelemetryHappyCommand(readRegion(buffer), null));
+      case telemetrySadResponseManifest:
+        return new Device.TelemetrySadResponse(new Device.TelemetrySadCommand(readRegion(buffer), null));
+      case telemetryPingResponseManifest:
+        return new Device.TelemetryPingResponse(new Device.TelemetryPingCommand(readRegion(buffer), null));
+      case stateManifest:
+        return readState(buffer);
+      case regionManifest:
+        return readRegion(buffer);
+      default:
+        throw new NotSerializableException(String.format("Unimplemented deserialization of message with manifest [%s] in %s", manifest, getClass().getSimpleName()));
+    }
+  }
+
+  private byte[] telemetryCommandToBinary(Device.TelemetryCommand telemetryCommand) {
+    final var replyTo = telemetryCommand.replyTo == null
+        ? null
+        : actorRefResolver().toSerializationFormat(telemetryCommand.replyTo).getBytes(StandardCharsets.UTF_8);
+    final var tileKey = tileKeyIfTile(telemetryCommand.region);
+    final var buffer = ByteBuffer.allocate(regionSize(tileKey) + 4 + (replyTo == null ? 0 : replyTo.length) + ingressSize);
+    writeRegion(buffer, telemetryCommand.region, tileKey);
+    if (replyTo == null) {
+      buffer.putInt(-1);
+    } else {
+      buffer.putInt(replyTo.length).put(replyTo);
+    }
+    buffer.putLong(telemetryCommand.ingressMs);
+    return buffer.array();
+  }
+
+  private static byte[] stateToBinary(Device.State state) {
+    final var tileKey = tileKeyIfTile(state.region);
+    final var buffer = ByteBuffer.allocate(regionSize(tileKey) + 1);
+    writeRegion(buffer, state.region, tileKey);
+    buffer.put((byte) ((state.active ? 1 : 0) | (state.happy ? 2 : 0)));
+    return buffer.array();
+  }
+
+  private static byte[] regionToBinary(Region region) {
+    final var tileKey = tileKeyIfTile(region);
+    final var buffer = ByteBuffer.allocate(regionSize(tileKey));
+    writeRegion(buffer, region, tileKey);
+    return buffer.array();
+  }
+
+  // Regions that are exactly a map grid tile round trip through their tile key, any other region is -1.
+  private static long tileKeyIfTile(Region region) {
+    final var tileKey = tileKeyOf(region);
+    return regionForTileKey(tileKey).equals(region) ? tileKey : -1;
+  }
+
+  private static int regionSize(long tileKey) {
+    return tileKey < 0 ? cornersRegionSize : tileRegionSize;
+  }
+
+  private static void writeRegion(ByteBuffer buffer, Region region, long tileKey) {
+    if (tileKey >= 0) {
+      buffer.put(tileRegion).putLong(tileKey);
+    } else {
+      buffer.put(cornersRegion).putInt(region.zoom)
+          .putDouble(region.topLeft.lat).putDouble(region.topLeft.lng)
+          .putDouble(region.botRight.lat).putDouble(region.botRight.lng);
+    }
+  }
+
+  private static Region readRegion(ByteBuffer buffer) throws NotSerializableException {
+    final var flag = buffer.get();
+    if (flag == tileRegion) {
+      return regionForTileKey(buffer.getLong());
+    } else if (flag == cornersRegion) {
+      final var zoom = buffer.getInt();
+      final var topLeft = topLeft(buffer.getDouble(), buffer.getDouble());
+      return region(zoom, topLeft, botRight(buffer.getDouble(), buffer.getDouble()));
+    }
+    throw new NotSerializableException(String.format("Unknown region layout %d", flag));
+  }
+
+  private <T> ActorRef<T> readActorRef(ByteBuffer buffer) {
+    final var length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    final var replyTo = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return actorRefResolver().resolveActorRef(replyTo);
+  }
+
+  private static long readIngressMs(ByteBuffer buffer) {
+    return buffer.remaining() >= ingressSize ? buffer.getLong() : 0;
+  }
+
+  // Slim events are empty or the ingress time, the region of an event written before events were slim is skipped.
+  private static long eventIngressMs(byte[] bytes) {
+    return bytes.length == ingressSize ? ByteBuffer.wrap(bytes).getLong() : 0;
+  }
+
+  private static Device.State readState(ByteBuffer buffer) throws NotSerializableException {
+    final var state = new Device.State(readRegion(buffer));
+    final var flags = buffer.get();
+    state.active = (flags & 1) != 0;
+    state.happy = (flags & 2) != 0;
+    return state;
+  }
+
+  // The resolver is an extension of the typed actor system, it is not available while the serializer is created.
+  private ActorRefResolver actorRefResolver() {
+    if (actorRefResolver == null) {
+      actorRefResolver = ActorRefResolver.get(Adapter.toTyped(system));
+    }
+    return actorRefResolver;
+  }
+}
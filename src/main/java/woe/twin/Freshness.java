@@ -0,0 +1,95 @@
+package woe.twin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.typesafe.config.Config;
+
+import akka.projection.eventsourced.EventEnvelope;
+
+/* End to end freshness, from a telemetry request's arrival to the commit of the region counts the map reads.
+ * Every woe.twin.projection.metrics.freshness-sample-every-n-requests telemetry request, per node and server, is
+ * sampled. Its command carries its ingress time to the device, the device persists it with the event, and each
+ * projection that writes the event records now - ingress time after its transaction commits, in the
+ * freshness.zoom-<zoom>.ingress-to-commit-ms histogram of each zoom it wrote. The interval covers the ask, the
+ * persist, the journal poll, the projection batch and the commit. In rollup mode only zoom 18 is recorded, the
+ * coarser zooms trail it by up to a rollup interval. Clocks of different nodes are compared, NTP skew adds to it.
+ * Events persisted before the handler started are replays, after a restart, a rebuild or a shard handover, and are
+ * not recorded, their age is not the freshness of live telemetry.
+ */
+class Freshness {
+  private final int sampleEveryNRequests;
+  private final AtomicLong requests = new AtomicLong();
+
+  Freshness(int sampleEveryNRequests) {
+    this.sampleEveryNRequests = sampleEveryNRequests;
+  }
+
+  static Freshness of(Config config) {
+    return new Freshness(config.getInt("woe.twin.projection.metrics.freshness-sample-every-n-requests"));
+  }
+
+  // The ingress time of a sampled request, 0 for the others.
+  long ingressMs() {
+    return sampleEveryNRequests > 0 && requests.incrementAndGet() % sampleEveryNRequests == 0 ? System.currentTimeMillis() : 0;
+  }
+
+  static long ingressMsOf(Device.Event event) {
+    return event instanceof Device.DeviceEvent ? ((Device.DeviceEvent) event).ingressMs : 0;
+  }
+
+  static Metrics.Histogram histogram(int zoom) {
+    return Metrics.histogram(String.format("freshness.zoom-%d.ingress-to-commit-ms", zoom));
+  }
+
+  static void committed(int zoomFrom, int zoomTo, List<Long> ingressMs) {
+    final var now = System.currentTimeMillis();
+    for (int zoom = zoomFrom; zoom <= zoomTo; zoom++) {
+      final var histogram = histogram(zoom);
+      ingressMs.forEach(ms -> histogram.record(now - ms));
+    }
+  }
+
+  static final LongAdder replaysSkipped = Metrics.counter("freshness.replays-skipped");
+
+  // The sampled ingress times of a handler's batch, reused from batch to batch.
+  static final class Samples {
+    private final List<Long> ingressMs = new ArrayList<>();
+    private final long startedMs;
+
+    Samples() {
+      this(System.currentTimeMillis());
+    }
+
+    // The events persisted before startedMs are not sampled.
+    Samples(long startedMs) {
+      this.startedMs = startedMs;
+    }
+
+    void clear() {
+      ingressMs.clear();
+    }
+
+    void add(EventEnvelope<Device.Event> eventEnvelope) {
+      final var eventIngressMs = ingressMsOf(eventEnvelope.event());
+      if (eventIngressMs == 0) {
+        return;
+      }
+      if (eventEnvelope.timestamp() < startedMs) {
+        replaysSkipped.increment();
+      } else {
+        ingressMs.add(eventIngressMs);
+      }
+    }
+
+    // Records the batch's samples for the zooms it wrote once the session commits.
+    void afterCommit(Consumer<Runnable> afterCommit, int zoomFrom, int zoomTo) {
+      if (!ingressMs.isEmpty()) {
+        afterCommit.accept(() -> committed(zoomFrom, zoomTo, ingressMs));
+      }
+    }
+  }
+}
@@ -33,7 +33,7 @@ public class GrpcServer {
   }
 
   CompletionStage<ServerBinding> start(String host, int port) {
-    final TelemetryServiceImpl telemetryServiceImpl = new TelemetryServiceImpl(clusterSharding);
+    final TelemetryServiceImpl telemetryServiceImpl = new TelemetryServiceImpl(clusterSharding, Freshness.of(actorSystem.settings().config()));
     return Http.get(actorSystem)
       .newServerAt(host, port)
       .bind(TwinDeviceServiceHandlerFactory.create(telemetryServiceImpl, actorSystem));
@@ -65,9 +65,11 @@ public class GrpcServer {
 
   static class TelemetryServiceImpl implements TwinDeviceService {
     private final ClusterSharding clusterSharding;
+    private final Freshness freshness;
 
-    TelemetryServiceImpl(ClusterSharding clusterSharding) {
+    TelemetryServiceImpl(ClusterSharding clusterSharding, Freshness freshness) {
       this.clusterSharding = clusterSharding;
+      this.freshness = freshness;
     }
 
     @Override
@@ -79,7 +81,8 @@ public class GrpcServer {
     private CompletionStage<Telemetry.TelemetryResponse> submitTelemetryToDevice(Telemetry.TelemetryRequest telemetryRequest) {
       String entityId = entityIdOf(telemetryRequest.region);
       EntityRef<Device.Command> entityRef = clusterSharding.entityRefFor(Device.entityTypeKey, entityId);
-      return entityRef.ask(telemetryRequest::asTelemetryCommand, Duration.ofSeconds(30))
+      final long ingressMs = freshness.ingressMs();
+      return entityRef.<Device.TelemetryResponse>ask(replyTo -> telemetryRequest.asTelemetryCommand(replyTo, ingressMs), Duration.ofSeconds(30))
           .handle((reply, e) -> {
             if (reply != null) {
               return Telemetry.TelemetryResponse.ok(StatusCodes.OK.intValue(), telemetryRequest);
@@ -44,6 +44,7 @@ public class HttpServer {
   private final ClusterSharding clusterSharding;
   private final DataSource dataSource;
   private final String homepageFilename;
+  private final Freshness freshness;
 
   static void start(String host, int port, ActorSystem<?> actorSystem) {
     new HttpServer(host, port, actorSystem);
@@ -54,6 +55,7 @@ public class HttpServer {
     clusterSharding = ClusterSharding.get(actorSystem);
     dataSource = dataSource(actorSystem);
     homepageFilename = actorSystem.settings().config().getString("woe.twin.homepage-filename");
+    freshness = Freshness.of(actorSystem.settings().config());
 
     start(host, port);
   }
@@ -99,7 +101,8 @@ public class HttpServer {
   private CompletionStage<Telemetry.TelemetryResponse> submitTelemetryToDevice(Telemetry.TelemetryRequest telemetryRequest) {
     final var entityId = entityIdOf(telemetryRequest.region);
     final var entityRef = clusterSharding.entityRefFor(Device.entityTypeKey, entityId);
-    return entityRef.ask(telemetryRequest::asTelemetryCommand, Duration.ofSeconds(30))
+    final var ingressMs = freshness.ingressMs();
+    return entityRef.<Device.TelemetryResponse>ask(replyTo -> telemetryRequest.asTelemetryCommand(replyTo, ingressMs), Duration.ofSeconds(30))
         .handle((reply, e) -> {
           if (reply != null) {
             return Telemetry.TelemetryResponse.ok(StatusCodes.OK.intValue(), telemetryRequest);
@@ -172,6 +175,7 @@ public class HttpServer {
     }
   }
 
+  // The sums include every stripe of the zoom 3 regions, see RegionStripes.
   private QueryResponse queryDeviceTotals() throws SQLException {
     final var sql = "select sum(device_count), sum(happy_count), sum(sad_count) from woe_twin_region where zoom = 3";
     try (final Connection connection = dataSource.getConnection();
@@ -185,9 +189,9 @@ public class HttpServer {
     }
   }
 
-  private List<DeviceProjectorSingleZoom.RegionSummary> query(Connection connection, WorldMap.Region regionQuery) throws SQLException {
+  private List<RegionStore.RegionSummary> query(Connection connection, WorldMap.Region regionQuery) throws SQLException {
     //final long start = System.nanoTime();
-    final var regionSummaries = new ArrayList<DeviceProjectorSingleZoom.RegionSummary>();
+    final var regionSummaries = new ArrayList<RegionStore.RegionSummary>();
     try (final Statement statement = connection.createStatement()) {
       final ResultSet resultSet = statement.executeQuery(sqlInRange(regionQuery));
       while (resultSet.next()) {
@@ -195,39 +199,47 @@ public class HttpServer {
         final WorldMap.LatLng botRight = new WorldMap.LatLng(resultSet.getFloat("bot_right_lat"), resultSet.getFloat("bot_right_lng"));
         final WorldMap.Region region = new WorldMap.Region(resultSet.getInt("zoom"), topLeft, botRight);
         regionSummaries
-            .add(new DeviceProjectorSingleZoom.RegionSummary(region, resultSet.getInt("device_count"), resultSet.getInt("happy_count"), resultSet.getInt("sad_count")));
+            .add(new RegionStore.RegionSummary(region, resultSet.getInt("device_count"), resultSet.getInt("happy_count"), resultSet.getInt("sad_count")));
       }
       //log().debug("UI query {}, zoom {}, regions {}", String.format("%,dns", System.nanoTime() - start), regionQuery.zoom, regionSummaries.size());
       return regionSummaries;
     }
   }
 
-  private static String sqlInRange(WorldMap.Region regionQuery) {
-    return String.format("select * from woe_twin_region"
+  // The Z-order range bounds the primary key range scan, the lat/lng conditions select the regions in the range.
+  // A striped region's rows are summed, the rows of a region are adjacent in the primary key.
+  static String sqlInRange(WorldMap.Region regionQuery) {
+    return String.format("select zoom, z_order, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng,"
+            + " sum(device_count) as device_count, sum(happy_count) as happy_count, sum(sad_count) as sad_count"
+            + " from woe_twin_region"
             + " where zoom = %d"
+            + " and z_order between %d and %d"
             + " and top_left_lat <= %1.9f"
             + " and top_left_lng >= %1.9f"
             + " and bot_right_lat >= %1.9f"
             + " and bot_right_lng <= %1.9f"
-            + " and device_count > 0",
-        regionQuery.zoom, regionQuery.topLeft.lat, regionQuery.topLeft.lng, regionQuery.botRight.lat, regionQuery.botRight.lng);
+            + " group by zoom, z_order, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng"
+            + " having sum(device_count) > 0",
+        regionQuery.zoom, WorldMap.zOrderMinIn(regionQuery), WorldMap.zOrderMaxIn(regionQuery),
+        regionQuery.topLeft.lat, regionQuery.topLeft.lng, regionQuery.botRight.lat, regionQuery.botRight.lng);
   }
 
   // This was an experiment suggested by Yugabyte as an attempt to do selects when using HASH on the primary key
   // The query response times were too high
   static String sqlInRegions(WorldMap.Region regionQuery) {
     final var sql = new StringBuilder();
-    final var regions = WorldMap.regionsIn(regionQuery);
+    final var tileKeys = WorldMap.tileKeysIn(regionQuery).iterator();
     final var nl = String.format("%n");
     var delimiter = "";
 
     sql.append("select * from woe_twin_region").append(nl);
-    sql.append(" where (zoom, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng)").append(nl);
+    sql.append(" where (zoom, z_order)").append(nl);
     sql.append(" in (values ");
 
-    for (WorldMap.Region r : regions) {
+    while (tileKeys.hasNext()) {
+      final var tileKey = tileKeys.nextLong();
       sql.append(String.format("%s%n", delimiter));
-      sql.append(String.format("(%d, %1.9f, %1.9f, %1.9f, %1.9f)", r.zoom, r.topLeft.lat, r.topLeft.lng, r.botRight.lat, r.botRight.lng));
+      sql.append(String.format("(%d, %d)", WorldMap.zoomOf(tileKey), WorldMap.zOrderOf(tileKey)));
       delimiter = ",";
     }
 
@@ -241,7 +253,7 @@ public class HttpServer {
     public final int deviceCount;
     public final int happyCount;
     public final int sadCount;
-    public List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries;
+    public List<RegionStore.RegionSummary> regionSummaries;
 
     public QueryResponse(int deviceCount, int happyCount, int sadCount) {
       this.deviceCount = deviceCount;
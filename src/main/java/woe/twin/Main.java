@@ -89,8 +89,20 @@ public class Main {
   }
 
   static void startProjection(ActorSystem<?> actorSystem) {
-    //DeviceProjectorAllZooms.start(actorSystem);
-    //DeviceProjectorSingleZoom.start(actorSystem);
-    DeviceProjectionFiltered.init(actorSystem);
+    RegionProjection.requireOneGrouping(actorSystem.settings().config());
+    final var mode = actorSystem.settings().config().getString("woe.twin.projection.mode");
+    switch (mode) {
+      case "filtered":
+        DeviceProjectionFiltered.init(actorSystem);
+        break;
+      case "all-zooms":
+        DeviceProjectorAllZooms.start(actorSystem);
+        break;
+      case "rollup":
+        DeviceProjectionRollup.init(actorSystem);
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown woe.twin.projection.mode '%s', use filtered, all-zooms or rollup", mode));
+    }
   }
 }
@@ -0,0 +1,88 @@
+package woe.twin;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/* Node local metrics, named gauges, counters and histograms, published by MetricsRoutes on the Akka Management endpoint.
+ * Names are dot separated, for example projection.region-all-zooms-summary.tag-0.group-limit.
+ * Registering a gauge again with the same name replaces it, so a restarted projection reports its new state.
+ */
+class Metrics {
+  private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  static void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  static LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  static Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new Histogram());
+  }
+
+  // Sorted by name, a histogram is published as name.count, name.sum, name.max, name.p50, name.p90 and name.p99.
+  static Map<String, Long> snapshot() {
+    final Map<String, Long> snapshot = new TreeMap<>();
+    gauges.forEach((name, value) -> snapshot.put(name, value.getAsLong()));
+    counters.forEach((name, value) -> snapshot.put(name, value.sum()));
+    histograms.forEach((name, histogram) -> {
+      snapshot.put(name + ".count", histogram.count());
+      snapshot.put(name + ".sum", histogram.sum.sum());
+      snapshot.put(name + ".max", histogram.max.get());
+      snapshot.put(name + ".p50", histogram.percentile(0.50));
+      snapshot.put(name + ".p90", histogram.percentile(0.90));
+      snapshot.put(name + ".p99", histogram.percentile(0.99));
+    });
+    return snapshot;
+  }
+
+  /* Counts of the recorded values in power of two buckets, bucket b holds the values from 2^(b-1) to 2^b - 1.
+   * Recording is a few atomic adds, so the handlers record every batch. A percentile is the upper bound of its
+   * bucket, at most the largest recorded value, within a factor of two of the exact value. The counts are since start.
+   */
+  static final class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+      final var v = Math.max(0, value);
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+      sum.add(v);
+      max.accumulate(v);
+    }
+
+    long count() {
+      var count = 0L;
+      for (int b = 0; b < buckets.length(); b++) {
+        count += buckets.get(b);
+      }
+      return count;
+    }
+
+    long percentile(double percentile) {
+      final var count = count();
+      if (count == 0) {
+        return 0;
+      }
+      final var rank = (long) Math.ceil(percentile * count);
+      var seen = 0L;
+      for (int b = 0; b < buckets.length(); b++) {
+        seen += buckets.get(b);
+        if (seen >= rank) {
+          return Math.min(max.get(), b == 0 ? 0 : b == 63 ? Long.MAX_VALUE : (1L << b) - 1);
+        }
+      }
+      return max.get();
+    }
+  }
+}
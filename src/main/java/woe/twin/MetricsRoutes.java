@@ -0,0 +1,23 @@
+package woe.twin;
+
+import static akka.http.javadsl.server.Directives.complete;
+import static akka.http.javadsl.server.Directives.get;
+import static akka.http.javadsl.server.Directives.path;
+
+import akka.actor.ExtendedActorSystem;
+import akka.http.javadsl.marshallers.jackson.Jackson;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+
+// GET /metrics on the Akka Management endpoint, a JSON object of the node's metrics by name.
+public class MetricsRoutes implements ManagementRouteProvider {
+  public MetricsRoutes(ExtendedActorSystem system) {
+  }
+
+  @Override
+  public Route routes(ManagementRouteProviderSettings settings) {
+    return path("metrics", () -> get(() -> complete(StatusCodes.OK, Metrics.snapshot(), Jackson.marshaller())));
+  }
+}
@@ -0,0 +1,210 @@
+package woe.twin;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import com.typesafe.config.Config;
+
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorSystem;
+import akka.persistence.jdbc.query.javadsl.JdbcReadJournal;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+
+/* Tails the journal on PostgreSQL notifications instead of polling, used when woe.twin.projection.journal-notify.enabled.
+ * The journal-notify.sql trigger sends tag:ordering on the woe_twin_journal channel when tagged events commit.
+ * One listener connection per node receives the notifications and broadcasts them to the node's sources.
+ * A source runs a currentEventsByTag query from its last offset when its tag is notified, or every fallback-interval
+ * for notifications lost while the listener reconnects. The read journal only returns events up to the ordering its
+ * journal sequence actor has seen, so until the notified ordering is read the source queries again every
+ * retry-interval. After max-empty-retries retries that read nothing new the source stops retrying, the notified
+ * event was deleted or the sequence actor waits on an ordering gap, and the fallback queries read it when it shows.
+ * An idle journal costs one fallback query per source and fallback-interval.
+ */
+class NotifiedEventsByTag {
+  private static final Logger log = LoggerFactory.getLogger(NotifiedEventsByTag.class);
+  static final String channel = "woe_twin_journal";
+
+  private enum Wake {
+    start, notified, fallback, retry
+  }
+
+  private final BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>> currentEventsByTag;
+  private final Source<String, NotUsed> notifications;
+  private final Duration fallbackInterval;
+  private final Duration retryInterval;
+  private final int maxEmptyRetries;
+  final LongAdder notifiedQueries = Metrics.counter("journal-notify.queries.notified");
+  final LongAdder fallbackQueries = Metrics.counter("journal-notify.queries.fallback");
+  final LongAdder retryQueries = Metrics.counter("journal-notify.queries.retry");
+  final LongAdder retriesAbandoned = Metrics.counter("journal-notify.retries-abandoned");
+
+  NotifiedEventsByTag(BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>> currentEventsByTag,
+      Source<String, NotUsed> notifications, Duration fallbackInterval, Duration retryInterval, int maxEmptyRetries) {
+    this.currentEventsByTag = currentEventsByTag;
+    this.notifications = notifications;
+    this.fallbackInterval = fallbackInterval;
+    this.retryInterval = retryInterval;
+    this.maxEmptyRetries = maxEmptyRetries;
+  }
+
+  // Starts the node's listener when the notified mode is on.
+  static Optional<NotifiedEventsByTag> of(ActorSystem<?> actorSystem) {
+    final var config = actorSystem.settings().config();
+    if (!config.getBoolean("woe.twin.projection.journal-notify.enabled")) {
+      return Optional.empty();
+    }
+    final var queueAndHub = Source.<String>queue(1024, OverflowStrategy.dropHead())
+        .toMat(BroadcastHub.of(String.class, 256), Keep.both())
+        .run(actorSystem);
+    final var listener = new Listener(config, queueAndHub.first());
+    final var thread = new Thread(listener, "woe-twin-journal-listener");
+    thread.setDaemon(true);
+    thread.start();
+    actorSystem.getWhenTerminated().thenRun(listener::stop);
+
+    final var readJournal = PersistenceQuery.get(actorSystem.classicSystem()).getReadJournalFor(JdbcReadJournal.class, JdbcReadJournal.Identifier());
+    return Optional.of(new NotifiedEventsByTag(
+        (tag, offset) -> readJournal.currentEventsByTag(tag, Offset.sequence(offset)).map(RegionProjection::envelope),
+        queueAndHub.second(),
+        config.getDuration("woe.twin.projection.journal-notify.fallback-interval"),
+        config.getDuration("woe.twin.projection.journal-notify.retry-interval"),
+        config.getInt("woe.twin.projection.journal-notify.max-empty-retries")));
+  }
+
+  Source<EventEnvelope<Device.Event>, NotUsed> eventsByTag(String tag, long offset) {
+    final var last = new AtomicLong(offset);
+    final var notified = new AtomicLong(offset);
+    final var retriedFrom = new AtomicLong(offset);
+    final var emptyRetries = new AtomicInteger();
+    final var prefix = tag + ":";
+
+    final Source<Wake, NotUsed> notifiedWakes = notifications
+        .filter(payload -> payload.startsWith(prefix))
+        .map(payload -> {
+          notified.accumulateAndGet(Long.parseLong(payload.substring(prefix.length())), Math::max);
+          return Wake.notified;
+        });
+    final var fallbackWakes = Source.tick(fallbackInterval, fallbackInterval, Wake.fallback);
+    final var retryWakes = Source.tick(retryInterval, retryInterval, Wake.retry).filter(wake -> {
+      final var lastRead = last.get();
+      final var notifiedOrdering = notified.get();
+      if (lastRead >= notifiedOrdering) {
+        return false;
+      }
+      if (retriedFrom.getAndSet(lastRead) < lastRead) {
+        emptyRetries.set(0);
+      }
+      if (emptyRetries.incrementAndGet() <= maxEmptyRetries) {
+        return true;
+      }
+      // Gives up on the notified ordering, unless a later notification arrived meanwhile.
+      if (notified.compareAndSet(notifiedOrdering, lastRead)) {
+        retriesAbandoned.increment();
+      }
+      return false;
+    });
+
+    // Wakes that arrive while a query runs are conflated into one more query.
+    return Source.single(Wake.start)
+        .merge(notifiedWakes)
+        .merge(fallbackWakes)
+        .merge(retryWakes)
+        .conflate((wake, next) -> wake)
+        .flatMapConcat(wake -> {
+          counterOf(wake).increment();
+          return currentEventsByTag.apply(tag, last.get());
+        })
+        .filter(eventEnvelope -> {
+          final var sequence = RegionProjection.sequenceOf(eventEnvelope.offset());
+          if (sequence <= last.get()) {
+            return false;
+          }
+          last.set(sequence);
+          return true;
+        });
+  }
+
+  private LongAdder counterOf(Wake wake) {
+    switch (wake) {
+      case fallback:
+        return fallbackQueries;
+      case retry:
+        return retryQueries;
+      default:
+        return notifiedQueries;
+    }
+  }
+
+  // Listens on its own connection, outside the pool, and reconnects after a failure.
+  private static final class Listener implements Runnable {
+    private final String url;
+    private final String username;
+    private final String password;
+    private final SourceQueueWithComplete<String> queue;
+    private final LongAdder notifications = Metrics.counter("journal-notify.notifications");
+    private volatile boolean running = true;
+
+    Listener(Config config, SourceQueueWithComplete<String> queue) {
+      url = config.getString("woe.twin.sql.url");
+      username = config.getString("woe.twin.sql.username");
+      password = config.getString("woe.twin.sql.password");
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try (Connection connection = DriverManager.getConnection(url, username, password)) {
+          try (Statement statement = connection.createStatement()) {
+            statement.execute("listen " + channel);
+          }
+          log.info("Listening on {}", channel);
+          final var pgConnection = connection.unwrap(PGConnection.class);
+          while (running) {
+            final var pgNotifications = pgConnection.getNotifications(1000);
+            if (pgNotifications != null) {
+              for (var pgNotification : pgNotifications) {
+                notifications.increment();
+                queue.offer(pgNotification.getParameter());
+              }
+            }
+          }
+        } catch (SQLException e) {
+          if (running) {
+            log.warn("Journal listener failed, reconnecting in 5s", e);
+            try {
+              Thread.sleep(5000);
+            } catch (InterruptedException interrupted) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+          }
+        }
+      }
+    }
+
+    void stop() {
+      running = false;
+      queue.complete();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package woe.twin;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.typesafe.config.Config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.jdbc.JdbcSession;
+import akka.projection.jdbc.javadsl.JdbcHandler;
+
+/* The metrics of one region projection, named projection.<projection name>.<projection key>.<metric>.
+ *   events-in, batch-size:           the envelopes handed to the handler, per batch in the histogram.
+ *   events-filtered-out:             envelopes the handler skipped, other shards' regions and handed over events.
+ *   regions-written, rows-affected:  the region summaries upserted, and the rows the statements reported.
+ *   sql-latency-ns:                  the handler's SQL round trips per batch, not the offset commit.
+ *   offset-lag, lag-ms:              orderings behind the journal head, and the age of the last handled event.
+ * The journal head is the journal's highest ordering, read once per journal-head-interval per node.
+ * The handlers log a batch's full SQL every sql-log-every-n-batches batches, 0 never logs it.
+ */
+class ProjectionMetrics {
+  private static final Logger log = LoggerFactory.getLogger(ProjectionMetrics.class);
+  private static final AtomicLong journalHead = new AtomicLong();
+  private static final AtomicBoolean journalHeadStarted = new AtomicBoolean();
+
+  final String name;
+  final LongAdder eventsIn;
+  final LongAdder eventsFilteredOut;
+  final LongAdder regionsWritten;
+  final LongAdder rowsAffected;
+  final Metrics.Histogram sqlLatencyNs;
+  final Metrics.Histogram batchSize;
+  private final int sqlLogEveryNBatches;
+  private final AtomicLong batches = new AtomicLong();
+  private volatile long lastOffset;
+  private volatile long lastTimestampMs;
+
+  ProjectionMetrics(String name, int sqlLogEveryNBatches) {
+    this.name = name;
+    this.sqlLogEveryNBatches = sqlLogEveryNBatches;
+    eventsIn = Metrics.counter(name + ".events-in");
+    eventsFilteredOut = Metrics.counter(name + ".events-filtered-out");
+    regionsWritten = Metrics.counter(name + ".regions-written");
+    rowsAffected = Metrics.counter(name + ".rows-affected");
+    sqlLatencyNs = Metrics.histogram(name + ".sql-latency-ns");
+    batchSize = Metrics.histogram(name + ".batch-size");
+  }
+
+  static ProjectionMetrics of(String name, Config config) {
+    return new ProjectionMetrics(name, config.getInt("woe.twin.projection.metrics.sql-log-every-n-batches"));
+  }
+
+  void registerMetrics() {
+    Metrics.gauge(name + ".offset-lag", this::offsetLag);
+    Metrics.gauge(name + ".lag-ms", () -> lastTimestampMs == 0 ? 0 : Math.max(0, System.currentTimeMillis() - lastTimestampMs));
+  }
+
+  // 0 until the journal head is read.
+  long offsetLag() {
+    final var head = journalHead.get();
+    return head == 0 ? 0 : Math.max(0, head - lastOffset);
+  }
+
+  <E> void batch(List<EventEnvelope<E>> eventEnvelopes) {
+    final var last = eventEnvelopes.get(eventEnvelopes.size() - 1);
+    eventsIn.add(eventEnvelopes.size());
+    batchSize.record(eventEnvelopes.size());
+    lastOffset = RegionProjection.sequenceOf(last.offset());
+    lastTimestampMs = last.timestamp();
+  }
+
+  // Called by the handler after its SQL, regions is the number of summaries in the statements.
+  void written(long sqlNs, int regions, long rows) {
+    sqlLatencyNs.record(sqlNs);
+    regionsWritten.add(regions);
+    rowsAffected.add(rows);
+  }
+
+  // True for every sql-log-every-n-batches batch, the handler builds and logs its SQL text only then.
+  boolean sampleSql() {
+    return sqlLogEveryNBatches > 0 && batches.incrementAndGet() % sqlLogEveryNBatches == 0;
+  }
+
+  <E, S extends JdbcSession> JdbcHandler<List<EventEnvelope<E>>, S> handler(JdbcHandler<List<EventEnvelope<E>>, S> handler) {
+    return new JdbcHandler<>() {
+      @Override
+      public void process(S session, List<EventEnvelope<E>> eventEnvelopes) throws Exception {
+        handler.process(session, eventEnvelopes);
+        batch(eventEnvelopes);
+      }
+
+      @Override
+      public void start() {
+        handler.start();
+      }
+
+      @Override
+      public void stop() {
+        handler.stop();
+      }
+    };
+  }
+
+  // Reads the journal head on the blocking JDBC dispatcher, once per node.
+  static void pollJournalHead(ActorSystem<?> actorSystem, Supplier<? extends JdbcSession> sessionFactory) {
+    if (!journalHeadStarted.compareAndSet(false, true)) {
+      return;
+    }
+    final var config = actorSystem.settings().config();
+    final var interval = config.getDuration("woe.twin.projection.metrics.journal-head-interval");
+    final var sql = String.format("select coalesce(max(ordering), 0) from %s", config.getString("jdbc-journal.tables.event_journal.tableName"));
+    final var dispatcher = actorSystem.dispatchers().lookup(DispatcherSelector.fromConfig("akka.projection.jdbc.blocking-jdbc-dispatcher"));
+    actorSystem.scheduler().scheduleWithFixedDelay(interval, interval, () -> {
+      try {
+        final var session = sessionFactory.get();
+        try {
+          journalHead.set(session.withConnection(connection -> {
+            try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(sql)) {
+              resultSet.next();
+              return resultSet.getLong(1);
+            }
+          }));
+          session.commit();
+        } finally {
+          session.close();
+        }
+      } catch (Exception e) {
+        log.warn("Journal head query failed", e);
+      }
+    }, dispatcher);
+  }
+
+  // Package private for tests.
+  static void journalHead(long ordering) {
+    journalHead.set(ordering);
+  }
+}
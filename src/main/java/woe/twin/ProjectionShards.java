@@ -0,0 +1,211 @@
+package woe.twin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import akka.NotUsed;
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.javadsl.SourceProvider;
+import akka.stream.javadsl.Source;
+
+/* Assigns the regions of each zoom to the filtered projection shards, woe.twin.projection.shards per zoom.
+ * A region's shard is a mixed hash of its tile key, so neighbouring tiles spread evenly over the shards.
+ * The offsets of each shard layout are stored under their own keys, zoom-z-shard-s-of-n. The keys of the first
+ * layout, zoom-z-shard-s, used the String hash of the legacy entity id, where negative hashes matched no shard.
+ *
+ * Changing the shard count is a drain and handover. Stop all the pods, the projections commit their last batch as
+ * they stop. Start the pods with the new shard count. Each new shard reads its zoom's most recently updated
+ * previous layout once per start, starts from the lowest of the previous offsets, and skips the events that the
+ * previous shard of the event's region had already counted. Once a new shard passes the highest previous offset
+ * the previous layout's offset rows are unused and can be deleted. Let a handover finish before changing the shard
+ * count again, the next handover only knows the offsets of the layout it replaces.
+ * The first layout is not handed over, the regions it counted in no shard have no counts to continue from. The
+ * projections refuse to start on its keys until woe.twin.RegionRebuild has replaced the counts and the offsets.
+ */
+class ProjectionShards {
+  enum Assignment {
+    legacy, mixed
+  }
+
+  private static final Pattern projectionKeyPattern = Pattern.compile("zoom-(\\d+)-shard-(\\d+)(?:-of-(\\d+))?");
+
+  static int shardOf(long tileKey, int shardCount) {
+    return Math.floorMod(mix(tileKey), shardCount);
+  }
+
+  // The first layout's assignment, -1 for the regions that no shard counted.
+  static int legacyShardOf(long tileKey, int shardCount) {
+    final var shard = WorldMap.legacyEntityIdOf(WorldMap.regionForTileKey(tileKey)).hashCode() % shardCount;
+    return shard < 0 ? -1 : shard;
+  }
+
+  // The 64 bit finalizer of MurmurHash3, every tile key bit affects every hash bit.
+  static long mix(long tileKey) {
+    var h = tileKey;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  static String projectionKey(int zoom, int shardCount, int shardId) {
+    return String.format("zoom-%d-shard-%d-of-%d", zoom, shardId, shardCount);
+  }
+
+  static final class StoredOffset {
+    final String projectionKey;
+    final long offset;
+    final long lastUpdated;
+
+    StoredOffset(String projectionKey, long offset, long lastUpdated) {
+      this.projectionKey = projectionKey;
+      this.offset = offset;
+      this.lastUpdated = lastUpdated;
+    }
+  }
+
+  // The previous layout's offsets per previous shard, 0 for a shard without an offset.
+  static final class Handover {
+    static final Handover none = new Handover(Assignment.mixed, 0, new long[0]);
+
+    final Assignment assignment;
+    final int shardCount;
+    private final long[] offsets;
+
+    Handover(Assignment assignment, int shardCount, long[] offsets) {
+      this.assignment = assignment;
+      this.shardCount = shardCount;
+      this.offsets = offsets;
+    }
+
+    boolean isNone() {
+      return offsets.length == 0;
+    }
+
+    Optional<Offset> startOffset() {
+      if (isNone()) {
+        return Optional.empty();
+      }
+      var min = Long.MAX_VALUE;
+      for (long offset : offsets) {
+        min = Math.min(min, offset);
+      }
+      return Optional.of(Offset.sequence(min));
+    }
+
+    // The first layout's counts miss the regions no shard counted, only a rebuild restores them.
+    Handover requireComplete() {
+      if (assignment == Assignment.legacy) {
+        throw new IllegalStateException(String.format("The %d shard zoom-z-shard-s offsets of the first shard layout left regions uncounted,"
+            + " run woe.twin.RegionRebuild before starting the filtered projections", shardCount));
+      }
+      return this;
+    }
+
+    // True when the previous shard of the event's region had already counted the event.
+    boolean counted(long tileKey, long offset) {
+      if (isNone()) {
+        return false;
+      }
+      final var shard = assignment == Assignment.legacy ? legacyShardOf(tileKey, shardCount) : shardOf(tileKey, shardCount);
+      return shard >= 0 && offset <= offsets[shard];
+    }
+
+    @Override
+    public String toString() {
+      return isNone() ? "none" : String.format("%s %d shards, from offset %d", assignment, shardCount, startOffset().map(o -> ((Sequence) o).value()).orElse(0L));
+    }
+  }
+
+  // The zoom's stored offsets, excluding the current layout's, the most recently updated layout is handed over.
+  static Handover handover(int shardCount, List<StoredOffset> storedOffsets) {
+    final Map<String, Long> lastUpdated = new HashMap<>();
+    final Map<String, Map<Integer, Long>> layouts = new HashMap<>();
+    for (StoredOffset storedOffset : storedOffsets) {
+      final var matcher = projectionKeyPattern.matcher(storedOffset.projectionKey);
+      if (!matcher.matches() || String.valueOf(shardCount).equals(matcher.group(3))) {
+        continue;
+      }
+      final var layout = matcher.group(3) == null ? "legacy" : matcher.group(3);
+      layouts.computeIfAbsent(layout, l -> new HashMap<>()).put(Integer.parseInt(matcher.group(2)), storedOffset.offset);
+      lastUpdated.merge(layout, storedOffset.lastUpdated, Math::max);
+    }
+    return lastUpdated.entrySet().stream()
+        .max(Map.Entry.comparingByValue())
+        .map(latest -> {
+          final var shardOffsets = layouts.get(latest.getKey());
+          final var legacy = latest.getKey().equals("legacy");
+          // The legacy keys don't name the shard count, shards without any offset past the highest one are not known.
+          final var previousShardCount = legacy
+              ? shardOffsets.keySet().stream().mapToInt(Integer::intValue).max().orElse(0) + 1
+              : Integer.parseInt(latest.getKey());
+          final var offsets = new long[previousShardCount];
+          shardOffsets.forEach((shard, offset) -> {
+            if (shard < offsets.length) {
+              offsets[shard] = offset;
+            }
+          });
+          return new Handover(legacy ? Assignment.legacy : Assignment.mixed, previousShardCount, offsets);
+        })
+        .orElse(Handover.none);
+  }
+
+  static Handover loadHandover(Connection connection, String offsetStoreTable, String projectionName, int zoom, int shardCount) throws SQLException {
+    final var sql = String.format("select projection_key, current_offset, last_updated from %s where projection_name = ? and projection_key like ?", offsetStoreTable);
+    try (var statement = connection.prepareStatement(sql)) {
+      statement.setString(1, projectionName);
+      statement.setString(2, String.format("zoom-%d-shard-%%", zoom));
+      final var storedOffsets = new ArrayList<StoredOffset>();
+      try (var resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          storedOffsets.add(new StoredOffset(resultSet.getString(1), Long.parseLong(resultSet.getString(2)), resultSet.getLong(3)));
+        }
+      }
+      return handover(shardCount, storedOffsets);
+    }
+  }
+
+  /* Loads the handover each time the projection starts its source. A new shard without its own offset starts from
+   * the handover's start offset. The loaded handover is passed to the handler before the first envelope.
+   */
+  static <E> SourceProvider<Offset, EventEnvelope<E>> withHandover(SourceProvider<Offset, EventEnvelope<E>> sourceProvider,
+      Supplier<Handover> load, Executor executor, Consumer<Handover> loaded) {
+    return new SourceProvider<>() {
+      @Override
+      public CompletionStage<Source<EventEnvelope<E>, NotUsed>> source(Supplier<CompletionStage<Optional<Offset>>> offset) {
+        return CompletableFuture.supplyAsync(load, executor)
+            .thenApply(Handover::requireComplete)
+            .thenCompose(handover -> {
+              loaded.accept(handover);
+              final var startOffset = offset.get().thenApply(stored -> stored.isPresent() ? stored : handover.startOffset());
+              return sourceProvider.source(() -> startOffset);
+            });
+      }
+
+      @Override
+      public Offset extractOffset(EventEnvelope<E> eventEnvelope) {
+        return sourceProvider.extractOffset(eventEnvelope);
+      }
+
+      @Override
+      public long extractCreationTime(EventEnvelope<E> eventEnvelope) {
+        return sourceProvider.extractCreationTime(eventEnvelope);
+      }
+    };
+  }
+}
@@ -0,0 +1,106 @@
+package woe.twin;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.typesafe.config.Config;
+
+import akka.NotUsed;
+
+import akka.actor.typed.ActorSystem;
+import akka.persistence.jdbc.query.javadsl.JdbcReadJournal;
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.projection.Projection;
+import akka.projection.ProjectionId;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.eventsourced.javadsl.EventSourcedProvider;
+import akka.projection.javadsl.SourceProvider;
+import akka.projection.jdbc.JdbcSession;
+import akka.projection.jdbc.javadsl.JdbcHandler;
+import akka.projection.jdbc.javadsl.JdbcProjection;
+import akka.stream.javadsl.Source;
+
+/* Creates the region projections, the handlers are called with a group of envelopes and commit the offset of the
+ * group's last envelope in the handler's transaction.
+ *   default:      groups of group-after-envelopes or group-after-duration.
+ *   large-groups: groups of large-groups.group-after-envelopes or large-groups.group-after-duration, the handlers net
+ *                 each group per tile, so a hot region is written once per large group instead of once per default
+ *                 sized group. The envelopes are held until the group is written.
+ *   adaptive:     group sizes chosen at runtime, see AdaptiveGrouping.
+ * Large groups and adaptive grouping are exclusive, see requireOneGrouping.
+ * The handlers are created with the projection's metrics, see ProjectionMetrics.
+ */
+class RegionProjection {
+  static <S extends JdbcSession> Projection<?> create(ActorSystem<?> actorSystem, ProjectionId projectionId,
+      SourceProvider<Offset, EventEnvelope<Device.Event>> sourceProvider, Supplier<S> sessionFactory,
+      Function<ProjectionMetrics, JdbcHandler<List<EventEnvelope<Device.Event>>, S>> handlerFactory) {
+    final var config = actorSystem.settings().config();
+    final var name = String.format("projection.%s.%s", projectionId.name(), projectionId.key());
+    final var projectionMetrics = ProjectionMetrics.of(name, config);
+    projectionMetrics.registerMetrics();
+    ProjectionMetrics.pollJournalHead(actorSystem, sessionFactory);
+
+    if (config.getBoolean("woe.twin.projection.adaptive-grouping.enabled")) {
+      final var adaptiveGrouping = AdaptiveGrouping.of(name, config);
+      adaptiveGrouping.registerMetrics();
+      return JdbcProjection.exactlyOnce(projectionId, adaptiveGrouping.sourceProvider(sourceProvider), sessionFactory,
+          () -> adaptiveGrouping.handler(projectionMetrics.handler(handlerFactory.apply(projectionMetrics))), actorSystem);
+    }
+
+    final var projection = JdbcProjection.groupedWithin(projectionId, sourceProvider, sessionFactory,
+        () -> projectionMetrics.handler(handlerFactory.apply(projectionMetrics)), actorSystem);
+    if (config.getBoolean("woe.twin.projection.large-groups.enabled")) {
+      return projection.withGroup(config.getInt("woe.twin.projection.large-groups.group-after-envelopes"),
+          config.getDuration("woe.twin.projection.large-groups.group-after-duration"));
+    }
+    return projection.withGroup(config.getInt("woe.twin.projection.group-after-envelopes"),
+        config.getDuration("woe.twin.projection.group-after-duration"));
+  }
+
+  // Checked at startup, adaptive grouping would silently ignore large-groups.
+  static void requireOneGrouping(Config config) {
+    if (config.getBoolean("woe.twin.projection.adaptive-grouping.enabled") && config.getBoolean("woe.twin.projection.large-groups.enabled")) {
+      throw new IllegalArgumentException("woe.twin.projection.adaptive-grouping and woe.twin.projection.large-groups are both enabled, enable one");
+    }
+  }
+
+  // The read journal's polling eventsByTag, or the notified source when woe.twin.projection.journal-notify.enabled.
+  static SourceProvider<Offset, EventEnvelope<Device.Event>> eventsByTag(ActorSystem<?> actorSystem, Optional<NotifiedEventsByTag> notifiedEventsByTag, String tag) {
+    return notifiedEventsByTag.map(notified -> sourceProvider(tag, notified::eventsByTag))
+        .orElseGet(() -> EventSourcedProvider.eventsByTag(actorSystem, JdbcReadJournal.Identifier(), tag));
+  }
+
+  // A source provider for an eventsByTag source from a journal ordering, the node local sources are started this way.
+  static SourceProvider<Offset, EventEnvelope<Device.Event>> sourceProvider(String tag,
+      BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>> eventsByTag) {
+    return new SourceProvider<>() {
+      @Override
+      public CompletionStage<Source<EventEnvelope<Device.Event>, NotUsed>> source(Supplier<CompletionStage<Optional<Offset>>> offset) {
+        return offset.get().thenApply(stored -> eventsByTag.apply(tag, stored.map(RegionProjection::sequenceOf).orElse(0L)));
+      }
+
+      @Override
+      public Offset extractOffset(EventEnvelope<Device.Event> eventEnvelope) {
+        return eventEnvelope.offset();
+      }
+
+      @Override
+      public long extractCreationTime(EventEnvelope<Device.Event> eventEnvelope) {
+        return eventEnvelope.timestamp();
+      }
+    };
+  }
+
+  static long sequenceOf(Offset offset) {
+    return offset instanceof Sequence ? ((Sequence) offset).value() : 0L;
+  }
+
+  static EventEnvelope<Device.Event> envelope(akka.persistence.query.EventEnvelope eventEnvelope) {
+    return EventEnvelope.create(eventEnvelope.offset(), eventEnvelope.persistenceId(), eventEnvelope.sequenceNr(), (Device.Event) eventEnvelope.event(), eventEnvelope.timestamp());
+  }
+}
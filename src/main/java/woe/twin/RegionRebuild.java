@@ -0,0 +1,274 @@
+package woe.twin;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import woe.twin.RegionStore.DbSession;
+import woe.twin.RegionStore.DbSessionFactory;
+import woe.twin.RegionStore.RegionSummaries;
+import woe.twin.RegionStore.RegionSummary;
+
+/* Rebuilds woe_twin_region from the journal while the region projections are stopped.
+ *   java -cp '/maven/*' woe.twin.RegionRebuild
+ * The journal up to its current highest ordering, the high water mark, is split into one ordering range per worker.
+ * Each worker scans its range on its own connection and nets the events per zoom 18 tile in memory. The partials
+ * are merged, folded into zoom 17 to 3, and COPY loaded into the woe_twin_region_rebuild shadow table. One
+ * transaction then replaces woe_twin_region with the shadow table, empties the rollup deltas, and sets the offsets
+ * of the configured woe.twin.projection.mode projections to the high water mark. The other modes' offsets are
+ * removed. The high water mark is read under a share lock on the journal, which waits for the in-flight event
+ * inserts to commit, so no event is later committed at or below it. Events persisted during the rebuild are above
+ * it, the projections count them on start. The rebuild counts every event of every device, so it refuses to run
+ * with woe.twin.device.snapshot.delete-events-on-snapshot on, or when a device's journal rows are deleted or
+ * missing sequence numbers.
+ */
+public class RegionRebuild {
+  private static final Logger log = LoggerFactory.getLogger(RegionRebuild.class);
+
+  public static void main(String[] args) {
+    final var config = ConfigFactory.parseString("akka.actor.provider = local").withFallback(ConfigFactory.load());
+    final ActorSystem<Void> actorSystem = ActorSystem.create(Behaviors.empty(), "woe-twin-rebuild", config);
+    try {
+      rebuild(actorSystem);
+    } catch (Exception e) {
+      log.error("Region rebuild failed, woe_twin_region is unchanged", e);
+      System.exit(1);
+    } finally {
+      actorSystem.terminate();
+    }
+  }
+
+  static void rebuild(ActorSystem<?> actorSystem) throws SQLException, InterruptedException, ExecutionException {
+    final var config = actorSystem.settings().config();
+    final var journalTable = config.getString("jdbc-journal.tables.event_journal.tableName");
+    final var workers = Math.max(1, Math.min(config.getInt("woe.twin.projection.rebuild.workers"), config.getInt("woe.twin.sql.max-pool-size")));
+    final var fetchSize = config.getInt("woe.twin.projection.rebuild.fetch-size");
+    final var serialization = SerializationExtension.get(actorSystem.classicSystem());
+    final var dbSessionFactory = new DbSessionFactory(actorSystem);
+    final var start = System.nanoTime();
+
+    requireAllEventsKept(config);
+    final var range = orderingRange(dbSessionFactory, journalTable);
+    requireCompleteJournal(dbSessionFactory, journalTable, range[1]);
+    final var ranges = ranges(range[0], range[1], workers);
+    log.info("Rebuild scan of orderings {} to {}, {} workers", range[0] + 1, range[1], ranges.size() - 1);
+
+    final var executor = Executors.newFixedThreadPool(workers);
+    final var zoom18 = new RegionSummaries(WorldMap.zoomMax);
+    try {
+      final List<Future<RegionSummaries>> partials = new ArrayList<>();
+      for (int i = 0; i + 1 < ranges.size(); i++) {
+        final var from = ranges.get(i);
+        final var to = ranges.get(i + 1);
+        partials.add(executor.submit(() -> scan(dbSessionFactory, journalTable, serialization, fetchSize, from, to)));
+      }
+      for (Future<RegionSummaries> partial : partials) {
+        zoom18.addAll(partial.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    final var summaries = summaries(zoom18);
+    log.info("Rebuild scanned in {}ms, loading {} regions", (System.nanoTime() - start) / 1_000_000, summaries.size());
+
+    load(dbSessionFactory, config, projectionOffsets(config, Device.tagsAll(actorSystem)), summaries, range[1]);
+    log.info("Rebuild of woe_twin_region to ordering {} done in {}ms", range[1], (System.nanoTime() - start) / 1_000_000);
+  }
+
+  // Deleted events are gone from the journal, a rebuild without them undercounts the regions.
+  static void requireAllEventsKept(Config config) {
+    if (config.getBoolean(Device.snapshotDeleteEventsSetting)) {
+      throw new IllegalStateException(String.format("Rebuild needs every device event, %s is on", Device.snapshotDeleteEventsSetting));
+    }
+  }
+
+  // The ordering before the first event and the high water mark.
+  private static long[] orderingRange(DbSessionFactory dbSessionFactory, String journalTable) throws SQLException {
+    final var session = dbSessionFactory.newInstance();
+    try (Statement statement = session.connection.createStatement()) {
+      // Orderings are taken from a sequence before the insert commits, a transaction still in flight can commit an
+      // ordering below the highest committed one. The share lock waits for the in-flight inserts and holds off new
+      // ones until the commit, new events then take orderings above the high water mark.
+      statement.execute(String.format("lock table %s in share mode", journalTable));
+      try (ResultSet resultSet = statement.executeQuery(String.format("select coalesce(min(ordering), 1) - 1, coalesce(max(ordering), 0) from %s", journalTable))) {
+        resultSet.next();
+        final var range = new long[] { resultSet.getLong(1), resultSet.getLong(2) };
+        session.commit();
+        return range;
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  // Every device's events up to the high water mark must be sequence numbers 1 to n, none deleted.
+  private static void requireCompleteJournal(DbSessionFactory dbSessionFactory, String journalTable, long highWaterMark) throws SQLException {
+    final var sql = String.format("select count(*), min(persistence_id) from (select persistence_id from %s"
+        + " where ordering <= ? and persistence_id like 'Device|%%' group by persistence_id"
+        + " having bool_or(deleted) or min(sequence_number) <> 1 or max(sequence_number) <> count(*)) incomplete", journalTable);
+    final var session = dbSessionFactory.newInstance();
+    try (var statement = session.connection.prepareStatement(sql)) {
+      statement.setLong(1, highWaterMark);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        resultSet.next();
+        final var incomplete = resultSet.getLong(1);
+        final var example = resultSet.getString(2);
+        session.commit();
+        if (incomplete > 0) {
+          throw new IllegalStateException(String.format("Rebuild needs every device event, %d devices have deleted or missing events, e.g. %s", incomplete, example));
+        }
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  // Range boundaries, each range is from its lower boundary, exclusive, to the next boundary, inclusive.
+  static List<Long> ranges(long from, long to, int workers) {
+    final List<Long> ranges = new ArrayList<>();
+    final var span = to - from;
+    ranges.add(from);
+    IntStream.rangeClosed(1, workers).forEach(i -> {
+      final var boundary = from + span * i / workers;
+      if (boundary > ranges.get(ranges.size() - 1)) {
+        ranges.add(boundary);
+      }
+    });
+    return ranges;
+  }
+
+  private static RegionSummaries scan(DbSessionFactory dbSessionFactory, String journalTable, Serialization serialization, int fetchSize, long from, long to) throws SQLException {
+    final var sql = String.format("select persistence_id, event_ser_id, event_ser_manifest, event_payload from %s"
+        + " where ordering > ? and ordering <= ? and not deleted and persistence_id like 'Device|%%'", journalTable);
+    final var regionSummaries = new RegionSummaries(WorldMap.zoomMax);
+    final var session = dbSessionFactory.newInstance();
+    try (var statement = session.connection.prepareStatement(sql)) {
+      // The connection is not auto commit, so the driver reads the rows with a cursor, fetch size rows at a time.
+      statement.setFetchSize(fetchSize);
+      statement.setLong(1, from);
+      statement.setLong(2, to);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          final var event = serialization.deserialize(resultSet.getBytes(4), resultSet.getInt(2), resultSet.getString(3)).get();
+          if (event instanceof Device.Event) {
+            regionSummaries.add((Device.Event) event, Device.tileKeyForPersistenceId(resultSet.getString(1)));
+          }
+        }
+      }
+      session.commit();
+    } finally {
+      session.close();
+    }
+    log.debug("Rebuild scanned orderings {} to {}", from + 1, to);
+    return regionSummaries;
+  }
+
+  // Zoom 3 to 18 in primary key order.
+  static List<RegionSummary> summaries(RegionSummaries zoom18) {
+    final Map<Long, RegionSummary> zoom18ByZOrder = new TreeMap<>();
+    zoom18.asList().forEach(summary -> zoom18ByZOrder.put(WorldMap.zOrderOf(summary.region.tileKey()), summary));
+    final var summaries = DeviceProjectionRollup.fold(zoom18ByZOrder);
+    summaries.addAll(zoom18ByZOrder.values());
+    return summaries;
+  }
+
+  // The configured mode's projection names and keys, see the projections' ProjectionId.
+  static List<String[]> projectionOffsets(Config config, List<String> tags) {
+    final List<String[]> projectionOffsets = new ArrayList<>();
+    final var mode = config.getString("woe.twin.projection.mode");
+    switch (mode) {
+      case "filtered":
+        final var shards = config.getInt("woe.twin.projection.shards");
+        IntStream.rangeClosed(3, 18).forEach(zoom -> IntStream.range(0, shards).forEach(shardId ->
+            projectionOffsets.add(new String[] { "region-zoom-summary", ProjectionShards.projectionKey(zoom, shards, shardId) })));
+        break;
+      case "all-zooms":
+        tags.forEach(tag -> projectionOffsets.add(new String[] { "region-all-zooms-summary", tag }));
+        break;
+      case "rollup":
+        tags.forEach(tag -> projectionOffsets.add(new String[] { "region-rollup-summary", tag }));
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown woe.twin.projection.mode '%s', use filtered, all-zooms or rollup", mode));
+    }
+    return projectionOffsets;
+  }
+
+  private static void load(DbSessionFactory dbSessionFactory, Config config, List<String[]> projectionOffsets, List<RegionSummary> summaries, long highWaterMark) throws SQLException {
+    final var offsetStoreTable = config.getString("akka.projection.jdbc.offset-store.table");
+    final var session = dbSessionFactory.newInstance();
+    try {
+      execute(session, "drop table if exists woe_twin_region_rebuild");
+      execute(session, "create table woe_twin_region_rebuild (like woe_twin_region including defaults)");
+      // The primary key is added after the load, one index build instead of one index insert per row.
+      final var rows = RegionUpsert.rows(summaries);
+      session.connection.unwrap(PGConnection.class).getCopyAPI().copyIn("copy woe_twin_region_rebuild"
+          + " (zoom, z_order, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng, device_count, happy_count, sad_count)"
+          + " from stdin", new StringReader(RegionUpsert.copyText(rows)));
+      execute(session, String.format("alter table woe_twin_region_rebuild add constraint woe_twin_region_rebuild_pkey primary key (%s)", primaryKey(session)));
+
+      execute(session, "lock table woe_twin_region in access exclusive mode");
+      execute(session, "drop table woe_twin_region");
+      execute(session, "alter table woe_twin_region_rebuild rename to woe_twin_region");
+      execute(session, "alter table woe_twin_region rename constraint woe_twin_region_rebuild_pkey to woe_twin_region_pkey");
+      execute(session, "delete from woe_twin_region_delta");
+
+      execute(session, String.format("delete from %s where projection_name in ('region-zoom-summary', 'region-all-zooms-summary', 'region-rollup-summary')", offsetStoreTable));
+      try (var statement = session.connection.prepareStatement(String.format("insert into %s"
+          + " (projection_name, projection_key, current_offset, manifest, mergeable, last_updated) values (?, ?, ?, 'SEQ', false, ?)", offsetStoreTable))) {
+        for (String[] projectionOffset : projectionOffsets) {
+          statement.setString(1, projectionOffset[0]);
+          statement.setString(2, projectionOffset[1]);
+          statement.setString(3, Long.toString(highWaterMark));
+          statement.setLong(4, System.currentTimeMillis());
+          statement.addBatch();
+        }
+        statement.executeBatch();
+      }
+      session.commit();
+    } catch (SQLException e) {
+      session.rollback();
+      throw e;
+    } catch (IOException e) {
+      session.rollback();
+      throw new SQLException("Rebuild copy failed", e);
+    } finally {
+      session.close();
+    }
+  }
+
+  // The rebuild loads stripe 0, a table with the stripe column keeps it in its primary key, see RegionStripes.
+  private static String primaryKey(DbSession session) throws SQLException {
+    try (ResultSet resultSet = session.connection.getMetaData().getColumns(null, null, "woe_twin_region", "stripe")) {
+      return resultSet.next() ? "zoom, z_order, stripe" : "zoom, z_order";
+    }
+  }
+
+  private static void execute(DbSession session, String sql) throws SQLException {
+    try (Statement statement = session.connection.createStatement()) {
+      statement.executeUpdate(sql);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package woe.twin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import akka.actor.typed.ActorSystem;
+import akka.japi.function.Function;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.jdbc.JdbcSession;
+
+/* The region summaries and JDBC sessions shared by the woe_twin_region writers, the filtered, all-zooms and rollup
+ * projections and RegionRebuild.
+ *   RegionSummary, RegionSummaries: a batch's device, happy and sad count changes per region of one zoom.
+ *   DbSession, DbSessionFactory:    projection sessions on a woe.twin.sql Hikari pool, not auto commit.
+ */
+class RegionStore {
+  static class DbSession implements JdbcSession {
+    final Connection connection;
+    private final List<Runnable> afterCommit = new ArrayList<>();
+
+    DbSession(DataSource dataSource) {
+      try {
+        connection = dataSource.getConnection();
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public <Result> Result withConnection(Function<Connection, Result> func) throws Exception {
+      return func.apply(connection);
+    }
+
+    // Runs once the current transaction commits, dropped if it rolls back.
+    void afterCommit(Runnable runnable) {
+      afterCommit.add(runnable);
+    }
+
+    @Override
+    public void commit() throws SQLException {
+      connection.commit();
+      afterCommit.forEach(Runnable::run);
+      afterCommit.clear();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+      afterCommit.clear();
+      connection.rollback();
+    }
+
+    @Override
+    public void close() throws SQLException {
+      connection.close();
+    }
+  }
+
+  static class DbSessionFactory {
+    private final DataSource dataSource;
+
+    DbSessionFactory(ActorSystem<?> actorSystem) {
+      final var dbUrl = actorSystem.settings().config().getString("woe.twin.sql.url");
+      final var username = actorSystem.settings().config().getString("woe.twin.sql.username");
+      final var password = actorSystem.settings().config().getString("woe.twin.sql.password");
+      final var maxPoolSize = actorSystem.settings().config().getInt("woe.twin.sql.max-pool-size");
+
+      final HikariConfig config = new HikariConfig();
+      config.setJdbcUrl(dbUrl);
+      config.setUsername(username);
+      config.setPassword(password);
+      config.setMaximumPoolSize(maxPoolSize);
+      config.setAutoCommit(false);
+
+      dataSource = new HikariDataSource(config);
+      actorSystem.log().debug("Datasource {}, pool size {}", dbUrl, maxPoolSize);
+    }
+
+    DbSession newInstance() {
+      return new DbSession(dataSource);
+    }
+  }
+
+  static class RegionSummary {
+    public final WorldMap.Region region;
+    public int deviceCount;
+    public int happyCount;
+    public int sadCount;
+
+    RegionSummary(WorldMap.Region region, int deviceCount, int happyCount, int sadCount) {
+      this.region = region;
+      this.deviceCount = deviceCount;
+      this.happyCount = happyCount;
+      this.sadCount = sadCount;
+    }
+
+    RegionSummary(WorldMap.Region region) {
+      this(region, 0, 0, 0);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %d, %d, %d]", getClass().getSimpleName(), region, deviceCount, happyCount, sadCount);
+    }
+
+    boolean isZero() {
+      return deviceCount == 0 && happyCount == 0 && sadCount == 0;
+    }
+  }
+
+  static class RegionSummaries {
+    private final int zoom;
+    private final TileCounts tileCounts = new TileCounts(256);
+
+    RegionSummaries(int zoom) {
+      this.zoom = zoom;
+    }
+
+    void add(EventEnvelope<Device.Event> eventEnvelope) {
+      add(eventEnvelope.event(), WorldMap.tileKeyAtZoom(zoom, Device.tileKeyForPersistenceId(eventEnvelope.persistenceId())));
+    }
+
+    // The tile key is the event's region at this zoom.
+    void add(Device.Event event, long tileKey) {
+      if (event instanceof Device.DeviceActivated) {
+        tileCounts.add(tileKey, 1, 1, 0);
+      } else if (event instanceof Device.DeviceDeactivatedHappy) {
+        tileCounts.add(tileKey, -1, -1, 0);
+      } else if (event instanceof Device.DeviceDeactivatedSad) {
+        tileCounts.add(tileKey, -1, 0, -1);
+      } else if (event instanceof Device.DeviceMadeHappy) {
+        tileCounts.add(tileKey, 0, 1, -1);
+      } else if (event instanceof Device.DeviceMadeSad) {
+        tileCounts.add(tileKey, 0, -1, 1);
+      }
+    }
+
+    // Z-order keeps the upserts in primary key order, so concurrent batches lock shared rows in the same order.
+    // Events that cancel out within the batch, such as happy, sad, happy, net to a zero summary that is not written.
+    List<RegionSummary> asList() {
+      final var zOrders = tileCounts.tileKeys();
+      for (int i = 0; i < zOrders.length; i++) {
+        zOrders[i] = WorldMap.zOrderOf(zOrders[i]);
+      }
+      Arrays.sort(zOrders);
+      final var list = new ArrayList<RegionSummary>(zOrders.length);
+      for (long zOrder : zOrders) {
+        final var tileKey = WorldMap.tileKeyForZOrder(zoom, zOrder);
+        final var slot = tileCounts.slot(tileKey);
+        final var deviceCount = tileCounts.deviceCount(slot);
+        final var happyCount = tileCounts.happyCount(slot);
+        final var sadCount = tileCounts.sadCount(slot);
+        if (deviceCount == 0 && happyCount == 0 && sadCount == 0) {
+          RegionUpsert.zeroRowsDropped.increment();
+        } else {
+          list.add(new RegionSummary(WorldMap.regionForTileKey(tileKey), deviceCount, happyCount, sadCount));
+        }
+      }
+      return list;
+    }
+
+    // Adds another zoom's summaries, used to merge the rebuild scan partials.
+    void addAll(RegionSummaries other) {
+      for (long tileKey : other.tileCounts.tileKeys()) {
+        final var slot = other.tileCounts.slot(tileKey);
+        tileCounts.add(tileKey, other.tileCounts.deviceCount(slot), other.tileCounts.happyCount(slot), other.tileCounts.sadCount(slot));
+      }
+    }
+
+    // Handlers reuse their summaries from batch to batch.
+    void clear() {
+      tileCounts.clear();
+    }
+  }
+}
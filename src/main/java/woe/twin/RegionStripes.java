@@ -0,0 +1,45 @@
+package woe.twin;
+
+import com.typesafe.config.Config;
+
+/* Striped coarse zoom regions, used by the all-zooms projections when woe.twin.projection.stripes.count is above 0.
+ * Every tag projection writes every zoom 3 region in nearly every batch, so without stripes the projections wait
+ * on each other's row locks. With stripes a region of zoom max-zoom or coarser is stored as up to count rows, the
+ * stripe column of the woe_twin_region primary key, and the tag projection with tag index i only upserts stripe
+ * i % count. Finer regions and the other writers use stripe 0. The queries sum a region's stripes, so the counts
+ * stay exact. A count at or above woe.twin.projection.tag-count gives each tag projection its own rows.
+ */
+class RegionStripes {
+  static final RegionStripes none = new RegionStripes(0, 0, 0);
+
+  final int count;
+  final int maxZoom;
+  final int stripe;
+
+  RegionStripes(int count, int maxZoom, int stripe) {
+    this.count = count;
+    this.maxZoom = maxZoom;
+    this.stripe = stripe;
+  }
+
+  static RegionStripes of(Config config, int tagIndex) {
+    final var count = config.getInt("woe.twin.projection.stripes.count");
+    return count > 0
+        ? new RegionStripes(count, config.getInt("woe.twin.projection.stripes.max-zoom"), tagIndex % count)
+        : none;
+  }
+
+  // True when the rows name their stripe, the table then needs the stripe column.
+  boolean enabled() {
+    return count > 0;
+  }
+
+  int stripeOf(int zoom) {
+    return enabled() && zoom <= maxZoom ? stripe : 0;
+  }
+
+  @Override
+  public String toString() {
+    return enabled() ? String.format("stripe %d of %d, zoom %d and coarser", stripe, count, maxZoom) : "none";
+  }
+}
@@ -0,0 +1,368 @@
+package woe.twin;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.typesafe.config.Config;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import woe.twin.RegionStore.RegionSummary;
+
+/* Writes region summary rows to woe_twin_region, woe.twin.projection.region-writer selects how.
+ *   statement: one literal multi row upsert per batch, the database parses and plans every batch.
+ *   batch:     one prepared upsert, a JDBC batch of one parameter set per row.
+ *   unnest:    one prepared upsert of the rows as PostgreSQL array parameters, one execution per batch.
+ *   copy:      COPY the rows into a session temporary staging table, then one set based upsert from it.
+ * The prepared writers use the same SQL text for every batch, so the driver's per connection statement cache
+ * keeps the server side statement, and the lat/lng doubles are bound without formatting.
+ * A projection that trails the journal by more than woe.twin.projection.bulk-load-lag switches to copy until it
+ * catches up, see WriterSelector.
+ * Striped rows also write the stripe column, see RegionStripes.
+ */
+class RegionUpsert {
+  enum Writer {
+    statement, batch, unnest, copy
+  }
+
+  static final String writerSetting = "woe.twin.projection.region-writer";
+  static final String bulkLoadLagSetting = "woe.twin.projection.bulk-load-lag";
+
+  // Write savings, rows netted to zero are dropped before SQL generation, batches without rows send no statement.
+  static final LongAdder rowsWritten = Metrics.counter("region-upsert.rows-written");
+  static final LongAdder statementsWritten = Metrics.counter("region-upsert.statements-written");
+  static final LongAdder zeroRowsDropped = Metrics.counter("region-upsert.zero-rows-dropped");
+  static final LongAdder statementsAvoided = Metrics.counter("region-upsert.statements-avoided");
+
+  private static final String conflict = " on conflict on constraint woe_twin_region_pkey"
+      + " do update set"
+      + " device_count = woe_twin_region.device_count + excluded.device_count,"
+      + " happy_count = woe_twin_region.happy_count + excluded.happy_count,"
+      + " sad_count = woe_twin_region.sad_count + excluded.sad_count";
+
+  private static final String columns = "zoom, z_order, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng, device_count, happy_count, sad_count";
+  private static final String stripedColumns = columns + ", stripe";
+
+  static final String batchSql = "insert into woe_twin_region"
+      + " (" + columns + ")"
+      + " values (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+      + conflict;
+
+  static final String stripedBatchSql = "insert into woe_twin_region"
+      + " (" + stripedColumns + ")"
+      + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+      + conflict;
+
+  static final String unnestSql = "insert into woe_twin_region"
+      + " (" + columns + ")"
+      + " select * from unnest(?::integer[], ?::bigint[], ?::float8[], ?::float8[], ?::float8[], ?::float8[], ?::integer[], ?::integer[], ?::integer[])"
+      + conflict;
+
+  static final String stripedUnnestSql = "insert into woe_twin_region"
+      + " (" + stripedColumns + ")"
+      + " select * from unnest(?::integer[], ?::bigint[], ?::float8[], ?::float8[], ?::float8[], ?::float8[], ?::integer[], ?::integer[], ?::integer[], ?::integer[])"
+      + conflict;
+
+  // Temporary tables are not WAL logged and are private to the session, so concurrent projections don't share rows.
+  // The pooled connections keep the table, on commit delete rows empties it after every batch.
+  static final String stagingTableSql = "create temporary table if not exists woe_twin_region_staging"
+      + " (like woe_twin_region including defaults) on commit delete rows";
+
+  static final String copySql = "copy woe_twin_region_staging (" + columns + ") from stdin";
+
+  static final String stripedCopySql = "copy woe_twin_region_staging (" + stripedColumns + ") from stdin";
+
+  static final String mergeSql = "insert into woe_twin_region"
+      + " (" + columns + ")"
+      + " select " + columns
+      + " from woe_twin_region_staging order by zoom, z_order"
+      + conflict;
+
+  static final String stripedMergeSql = "insert into woe_twin_region"
+      + " (" + stripedColumns + ")"
+      + " select " + stripedColumns
+      + " from woe_twin_region_staging order by zoom, z_order, stripe"
+      + conflict;
+
+  static Writer writerFor(Config config) {
+    final var writer = config.getString(writerSetting);
+    try {
+      return Writer.valueOf(writer);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(String.format("Unknown %s '%s', use statement, batch, unnest or copy", writerSetting, writer), e);
+    }
+  }
+
+  // The statement writer runs the projector's literal upsert, so the projectors keep their own SQL builders.
+  // Returns the rows the database reports as inserted or updated, 0 when no statement is sent.
+  static long write(Connection connection, Writer writer, Rows rows, Supplier<String> sql) throws SQLException {
+    if (rows.size == 0) {
+      statementsAvoided.increment();
+      return 0;
+    }
+    rowsWritten.add(rows.size);
+    statementsWritten.increment();
+    switch (writer) {
+      case statement:
+        try (Statement statement = connection.createStatement()) {
+          return statement.executeUpdate(sql.get());
+        }
+      case batch:
+        return batch(connection, rows);
+      case unnest:
+        return unnest(connection, rows);
+      case copy:
+        return copy(connection, rows);
+      default:
+        throw new IllegalArgumentException(String.format("Unknown writer %s", writer));
+    }
+  }
+
+  static long batch(Connection connection, Rows rows) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(rows.striped ? stripedBatchSql : batchSql)) {
+      for (int i = 0; i < rows.size; i++) {
+        statement.setInt(1, rows.zoom[i]);
+        statement.setLong(2, rows.zOrder[i]);
+        statement.setDouble(3, rows.topLeftLat[i]);
+        statement.setDouble(4, rows.topLeftLng[i]);
+        statement.setDouble(5, rows.botRightLat[i]);
+        statement.setDouble(6, rows.botRightLng[i]);
+        statement.setInt(7, rows.deviceCount[i]);
+        statement.setInt(8, rows.happyCount[i]);
+        statement.setInt(9, rows.sadCount[i]);
+        if (rows.striped) {
+          statement.setInt(10, rows.stripe[i]);
+        }
+        statement.addBatch();
+      }
+      // A driver that doesn't know an update count reports SUCCESS_NO_INFO, a negative count.
+      var updated = 0L;
+      for (int count : statement.executeBatch()) {
+        updated += Math.max(0, count);
+      }
+      return updated;
+    }
+  }
+
+  static long unnest(Connection connection, Rows rows) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(rows.striped ? stripedUnnestSql : unnestSql)) {
+      final Integer[] zooms = new Integer[rows.size];
+      final Long[] zOrders = new Long[rows.size];
+      final Double[] topLeftLats = new Double[rows.size];
+      final Double[] topLeftLngs = new Double[rows.size];
+      final Double[] botRightLats = new Double[rows.size];
+      final Double[] botRightLngs = new Double[rows.size];
+      final Integer[] deviceCounts = new Integer[rows.size];
+      final Integer[] happyCounts = new Integer[rows.size];
+      final Integer[] sadCounts = new Integer[rows.size];
+      final Integer[] stripes = new Integer[rows.size];
+      for (int i = 0; i < rows.size; i++) {
+        zooms[i] = rows.zoom[i];
+        zOrders[i] = rows.zOrder[i];
+        topLeftLats[i] = rows.topLeftLat[i];
+        topLeftLngs[i] = rows.topLeftLng[i];
+        botRightLats[i] = rows.botRightLat[i];
+        botRightLngs[i] = rows.botRightLng[i];
+        deviceCounts[i] = rows.deviceCount[i];
+        happyCounts[i] = rows.happyCount[i];
+        sadCounts[i] = rows.sadCount[i];
+        stripes[i] = rows.stripe[i];
+      }
+      statement.setArray(1, connection.createArrayOf("integer", zooms));
+      statement.setArray(2, connection.createArrayOf("bigint", zOrders));
+      statement.setArray(3, connection.createArrayOf("float8", topLeftLats));
+      statement.setArray(4, connection.createArrayOf("float8", topLeftLngs));
+      statement.setArray(5, connection.createArrayOf("float8", botRightLats));
+      statement.setArray(6, connection.createArrayOf("float8", botRightLngs));
+      statement.setArray(7, connection.createArrayOf("integer", deviceCounts));
+      statement.setArray(8, connection.createArrayOf("integer", happyCounts));
+      statement.setArray(9, connection.createArrayOf("integer", sadCounts));
+      if (rows.striped) {
+        statement.setArray(10, connection.createArrayOf("integer", stripes));
+      }
+      return statement.executeUpdate();
+    }
+  }
+
+  static long copy(Connection connection, Rows rows) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate(stagingTableSql);
+    }
+
+    final CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(rows.striped ? stripedCopySql : copySql);
+    try {
+      final var bytes = copyText(rows).getBytes(StandardCharsets.UTF_8);
+      copyIn.writeToCopy(bytes, 0, bytes.length);
+      copyIn.endCopy();
+    } finally {
+      if (copyIn.isActive()) {
+        copyIn.cancelCopy();
+      }
+    }
+
+    try (Statement statement = connection.createStatement()) {
+      return statement.executeUpdate(rows.striped ? stripedMergeSql : mergeSql);
+    }
+  }
+
+  // COPY text format, tab separated columns. Double.toString round trips, so the staged lat/lngs are the Java values.
+  static String copyText(Rows rows) {
+    final StringBuilder text = new StringBuilder(rows.size * 96);
+    for (int i = 0; i < rows.size; i++) {
+      text.append(rows.zoom[i]).append('\t')
+          .append(rows.zOrder[i]).append('\t')
+          .append(rows.topLeftLat[i]).append('\t')
+          .append(rows.topLeftLng[i]).append('\t')
+          .append(rows.botRightLat[i]).append('\t')
+          .append(rows.botRightLng[i]).append('\t')
+          .append(rows.deviceCount[i]).append('\t')
+          .append(rows.happyCount[i]).append('\t')
+          .append(rows.sadCount[i]);
+      if (rows.striped) {
+        text.append('\t').append(rows.stripe[i]);
+      }
+      text.append('\n');
+    }
+    return text.toString();
+  }
+
+  // The rows and the literal upsert of region summaries, stripe 0 when the stripes are none.
+  static Rows rows(List<RegionSummary> regionSummaries) {
+    return rows(regionSummaries, RegionStripes.none);
+  }
+
+  static Rows rows(List<RegionSummary> regionSummaries, RegionStripes regionStripes) {
+    final var rows = new Rows(regionSummaries.size(), regionStripes.enabled());
+    regionSummaries.forEach(summary ->
+        rows.add(summary.region, regionStripes.stripeOf(summary.region.zoom), summary.deviceCount, summary.happyCount, summary.sadCount));
+    return rows;
+  }
+
+  static String sql(List<RegionSummary> regionSummaries) {
+    return sql(regionSummaries, RegionStripes.none);
+  }
+
+  static String sql(List<RegionSummary> regionSummaries, RegionStripes regionStripes) {
+    final var sql = new StringBuilder();
+    String delimiter = "";
+
+    sql.append("insert into woe_twin_region");
+    sql.append(" (zoom, z_order, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng, device_count, happy_count, sad_count");
+    sql.append(regionStripes.enabled() ? ", stripe)" : ")");
+    sql.append(" values");
+
+    for (RegionSummary regionSummary : regionSummaries) {
+      final var region = regionSummary.region;
+      sql.append(delimiter);
+      sql.append(String.format("%n (%d, %d, %1.9f, %1.9f, %1.9f, %1.9f, %d, %d, %d",
+          region.zoom, WorldMap.zOrderOf(region.tileKey()), region.topLeft.lat, region.topLeft.lng, region.botRight.lat, region.botRight.lng,
+          regionSummary.deviceCount, regionSummary.happyCount, regionSummary.sadCount));
+      sql.append(regionStripes.enabled() ? String.format(", %d)", regionStripes.stripeOf(region.zoom)) : ")");
+      delimiter = ",";
+    }
+
+    sql.append(" on conflict on constraint woe_twin_region_pkey");
+    sql.append(" do update set");
+    sql.append(" device_count = woe_twin_region.device_count + excluded.device_count,");
+    sql.append(" happy_count = woe_twin_region.happy_count + excluded.happy_count,");
+    sql.append(" sad_count = woe_twin_region.sad_count + excluded.sad_count");
+
+    return sql.toString();
+  }
+
+  /* Picks the writer for each batch. Batches of events older than the bulk load lag use copy, so a rebuild or a large
+   * backlog is bulk loaded, the configured writer is used again once the projection catches up.
+   * A zero bulk load lag turns off the switch. A selector is used by one handler, it is not thread safe.
+   */
+  static final class WriterSelector {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final String name;
+    final Writer writer;
+    private final long bulkLoadLagMs;
+    private boolean bulkLoading;
+
+    WriterSelector(String name, Writer writer, Duration bulkLoadLag) {
+      this.name = name;
+      this.writer = writer;
+      this.bulkLoadLagMs = bulkLoadLag.toMillis();
+    }
+
+    static WriterSelector of(String name, Config config) {
+      return new WriterSelector(name, writerFor(config), config.getDuration(bulkLoadLagSetting));
+    }
+
+    // The timestamp is when the batch's last event was persisted.
+    Writer select(long eventTimestampMs) {
+      final var lagMs = System.currentTimeMillis() - eventTimestampMs;
+      final var bulk = bulkLoadLagMs > 0 && lagMs > bulkLoadLagMs;
+      if (bulk != bulkLoading) {
+        bulkLoading = bulk;
+        log.info("{} lag {}ms, {}", name, lagMs, bulk ? "bulk loading with copy" : String.format("caught up, writing with %s", writer));
+      }
+      return bulk ? Writer.copy : writer;
+    }
+  }
+
+  // Column arrays of the rows to upsert, filled in primary key order by the projectors.
+  static final class Rows {
+    int size;
+    final boolean striped;
+    final int[] zoom;
+    final long[] zOrder;
+    final double[] topLeftLat;
+    final double[] topLeftLng;
+    final double[] botRightLat;
+    final double[] botRightLng;
+    final int[] deviceCount;
+    final int[] happyCount;
+    final int[] sadCount;
+    final int[] stripe;
+
+    Rows(int capacity) {
+      this(capacity, false);
+    }
+
+    Rows(int capacity, boolean striped) {
+      this.striped = striped;
+      zoom = new int[capacity];
+      zOrder = new long[capacity];
+      topLeftLat = new double[capacity];
+      topLeftLng = new double[capacity];
+      botRightLat = new double[capacity];
+      botRightLng = new double[capacity];
+      deviceCount = new int[capacity];
+      happyCount = new int[capacity];
+      sadCount = new int[capacity];
+      stripe = new int[capacity];
+    }
+
+    Rows add(WorldMap.Region region, int deviceCount, int happyCount, int sadCount) {
+      return add(region, 0, deviceCount, happyCount, sadCount);
+    }
+
+    Rows add(WorldMap.Region region, int stripe, int deviceCount, int happyCount, int sadCount) {
+      zoom[size] = region.zoom;
+      zOrder[size] = WorldMap.zOrderOf(region.tileKey());
+      topLeftLat[size] = region.topLeft.lat;
+      topLeftLng[size] = region.topLeft.lng;
+      botRightLat[size] = region.botRight.lat;
+      botRightLng[size] = region.botRight.lng;
+      this.deviceCount[size] = deviceCount;
+      this.happyCount[size] = happyCount;
+      this.sadCount[size] = sadCount;
+      this.stripe[size] = stripe;
+      size++;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package woe.twin;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorSystem;
+import akka.persistence.jdbc.query.javadsl.JdbcReadJournal;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.javadsl.SourceProvider;
+import akka.stream.BufferOverflowException;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Source;
+
+/* Node local event streams shared by the projections that read the same tag, so the journal is polled once per tag
+ * and node instead of once per projection. Each tag's live eventsByTag query runs into a BroadcastHub, each
+ * subscriber has its own buffer in front of the hub, and keeps its own offset.
+ * A subscriber first reads the events after its offset with a finite currentEventsByTag query, then attaches to the
+ * hub. The events between the catch up and the first hub event are read by one more current query, up to the first
+ * hub event. The subscriber drops the events at or before its last offset, so a subscriber that is ahead of the hub
+ * skips the events it has. A subscriber that falls subscriber-buffer-size events behind the hub detaches from it
+ * and continues on its own eventsByTag query from its last offset, so a slow projection neither holds back the
+ * other subscribers nor restarts. It attaches to the hub again when its projection restarts.
+ */
+class SharedEventsByTag {
+  private final ActorSystem<?> actorSystem;
+  private final BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>> eventsByTag;
+  private final BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>> currentEventsByTag;
+  private final int hubBufferSize;
+  private final int subscriberBufferSize;
+  private final Map<String, Source<EventEnvelope<Device.Event>, NotUsed>> hubs = new ConcurrentHashMap<>();
+  final LongAdder liveQueries = Metrics.counter("shared-events-by-tag.live-queries");
+  final LongAdder catchUpQueries = Metrics.counter("shared-events-by-tag.catch-up-queries");
+  final LongAdder detachedSubscribers = Metrics.counter("shared-events-by-tag.detached-subscribers");
+
+  SharedEventsByTag(ActorSystem<?> actorSystem,
+      BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>> eventsByTag,
+      BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>> currentEventsByTag,
+      int hubBufferSize, int subscriberBufferSize) {
+    this.actorSystem = actorSystem;
+    this.eventsByTag = eventsByTag;
+    this.currentEventsByTag = currentEventsByTag;
+    this.hubBufferSize = hubBufferSize;
+    this.subscriberBufferSize = subscriberBufferSize;
+  }
+
+  // The hubs read the notified source when there is one.
+  static SharedEventsByTag of(ActorSystem<?> actorSystem, Optional<NotifiedEventsByTag> notifiedEventsByTag) {
+    final var config = actorSystem.settings().config();
+    final var readJournal = PersistenceQuery.get(actorSystem.classicSystem()).getReadJournalFor(JdbcReadJournal.class, JdbcReadJournal.Identifier());
+    return new SharedEventsByTag(actorSystem,
+        notifiedEventsByTag.<BiFunction<String, Long, Source<EventEnvelope<Device.Event>, NotUsed>>>map(notified -> notified::eventsByTag)
+            .orElse((tag, offset) -> readJournal.eventsByTag(tag, Offset.sequence(offset)).map(RegionProjection::envelope)),
+        (tag, offset) -> readJournal.currentEventsByTag(tag, Offset.sequence(offset)).map(RegionProjection::envelope),
+        config.getInt("woe.twin.projection.shared-events-by-tag.hub-buffer-size"),
+        config.getInt("woe.twin.projection.shared-events-by-tag.subscriber-buffer-size"));
+  }
+
+  SourceProvider<Offset, EventEnvelope<Device.Event>> sourceProvider(String tag) {
+    return RegionProjection.sourceProvider(tag, this::eventsByTag);
+  }
+
+  Source<EventEnvelope<Device.Event>, NotUsed> eventsByTag(String tag, long offset) {
+    final var last = new AtomicLong(offset);
+    return current(tag, last.get())
+        .concat(Source.lazySource(() -> hub(tag, last.get())
+            .buffer(subscriberBufferSize, OverflowStrategy.fail())
+            .prefixAndTail(1)
+            .flatMapConcat(firstAndTail -> {
+              if (firstAndTail.first().isEmpty()) {
+                return Source.<EventEnvelope<Device.Event>>empty();
+              }
+              final var first = firstAndTail.first().get(0);
+              final var firstOffset = RegionProjection.sequenceOf(first.offset());
+              return current(tag, last.get())
+                  .takeWhile(eventEnvelope -> RegionProjection.sequenceOf(eventEnvelope.offset()) < firstOffset)
+                  .concat(Source.single(first))
+                  .concat(firstAndTail.second());
+            }))
+            .mapMaterializedValue(notUsed -> NotUsed.getInstance()))
+        .recoverWithRetries(1, BufferOverflowException.class, () -> detached(tag, last.get()))
+        .filter(eventEnvelope -> {
+          final var sequence = RegionProjection.sequenceOf(eventEnvelope.offset());
+          if (sequence <= last.get()) {
+            return false;
+          }
+          last.set(sequence);
+          return true;
+        });
+  }
+
+  private Source<EventEnvelope<Device.Event>, NotUsed> current(String tag, long offset) {
+    catchUpQueries.increment();
+    return currentEventsByTag.apply(tag, offset);
+  }
+
+  // The subscriber's own live query, from the last event it passed on.
+  private Source<EventEnvelope<Device.Event>, NotUsed> detached(String tag, long offset) {
+    detachedSubscribers.increment();
+    return eventsByTag.apply(tag, offset);
+  }
+
+  // A hub whose query fails or completes is removed, the next subscriber starts a new one.
+  private Source<EventEnvelope<Device.Event>, NotUsed> hub(String tag, long offset) {
+    return hubs.computeIfAbsent(tag, t -> {
+      liveQueries.increment();
+      @SuppressWarnings("unchecked")
+      final Class<EventEnvelope<Device.Event>> eventEnvelopeClass = (Class<EventEnvelope<Device.Event>>) (Class<?>) EventEnvelope.class;
+      final var hub = new CompletableFuture<Source<EventEnvelope<Device.Event>, NotUsed>>();
+      final var source = eventsByTag.apply(t, offset)
+          .watchTermination((notUsed, done) -> done.whenCompleteAsync((d, e) -> hub.thenAccept(h -> hubs.remove(t, h)), actorSystem.executionContext()))
+          .toMat(BroadcastHub.of(eventEnvelopeClass, hubBufferSize), Keep.right())
+          .run(actorSystem);
+      hub.complete(source);
+      return source;
+    });
+  }
+}
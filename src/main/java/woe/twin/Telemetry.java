@@ -31,18 +31,19 @@ public interface Telemetry {
       region = new WorldMap.Region(zoom, WorldMap.topLeft(topLeftLat, topLeftLng), WorldMap.botRight(botRightLat, botRightLng));
     }
 
-    Device.TelemetryCommand asTelemetryCommand(ActorRef<Device.TelemetryResponse> replyTo) {
+    // The ingress time of a request sampled for freshness, 0 otherwise.
+    Device.TelemetryCommand asTelemetryCommand(ActorRef<Device.TelemetryResponse> replyTo, long ingressMs) {
       switch (action) {
         case "create":
-          return new Device.TelemetryCreateCommand(region, replyTo);
+          return new Device.TelemetryCreateCommand(region, replyTo, ingressMs);
         case "delete":
-          return new Device.TelemetryDeleteCommand(region, replyTo);
+          return new Device.TelemetryDeleteCommand(region, replyTo, ingressMs);
         case "happy":
-          return new Device.TelemetryHappyCommand(region, replyTo);
+          return new Device.TelemetryHappyCommand(region, replyTo, ingressMs);
         case "sad":
-          return new Device.TelemetrySadCommand(region, replyTo);
+          return new Device.TelemetrySadCommand(region, replyTo, ingressMs);
         case "ping":
-          return new Device.TelemetryPingCommand(region, replyTo);
+          return new Device.TelemetryPingCommand(region, replyTo, ingressMs);
         default:
           throw new IllegalArgumentException(String.format("Action '%s' illegal, must be one of: 'create', 'delete', 'happy', or 'sad'.", action));
       }
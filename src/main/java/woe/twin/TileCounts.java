@@ -0,0 +1,119 @@
+package woe.twin;
+
+import java.util.Arrays;
+
+/* Device, happy and sad count deltas keyed by tile key, an open addressing map with linear probing.
+ * The keys and the counts are parallel primitive arrays, so adding to a tile allocates nothing once the tile's slot
+ * exists, and clear() keeps the arrays for the next batch. Tile keys are never negative, so -1 marks a free slot.
+ */
+final class TileCounts {
+  private static final long free = -1;
+
+  private long[] tileKeys;
+  private int[] deviceCounts;
+  private int[] happyCounts;
+  private int[] sadCounts;
+  private int size;
+  private int shift;
+
+  TileCounts(int expectedTiles) {
+    allocate(Math.max(16, Integer.highestOneBit(Math.max(1, expectedTiles) * 2 - 1) * 2));
+  }
+
+  int size() {
+    return size;
+  }
+
+  void add(long tileKey, int deviceCount, int happyCount, int sadCount) {
+    var slot = slotOf(tileKey);
+    if (tileKeys[slot] == free) {
+      if (size + 1 > tileKeys.length / 2) {
+        grow();
+        slot = slotOf(tileKey);
+      }
+      tileKeys[slot] = tileKey;
+      size++;
+    }
+    deviceCounts[slot] += deviceCount;
+    happyCounts[slot] += happyCount;
+    sadCounts[slot] += sadCount;
+  }
+
+  // The slot of the tile's counts, or -1 when the tile has no counts.
+  int slot(long tileKey) {
+    final var slot = slotOf(tileKey);
+    return tileKeys[slot] == free ? -1 : slot;
+  }
+
+  long tileKey(int slot) {
+    return tileKeys[slot];
+  }
+
+  int deviceCount(int slot) {
+    return deviceCounts[slot];
+  }
+
+  int happyCount(int slot) {
+    return happyCounts[slot];
+  }
+
+  int sadCount(int slot) {
+    return sadCounts[slot];
+  }
+
+  // The tile keys with counts, in no particular order.
+  long[] tileKeys() {
+    final var keys = new long[size];
+    for (int slot = 0, i = 0; slot < tileKeys.length; slot++) {
+      if (tileKeys[slot] != free) {
+        keys[i++] = tileKeys[slot];
+      }
+    }
+    return keys;
+  }
+
+  void clear() {
+    if (size > 0) {
+      Arrays.fill(tileKeys, free);
+      Arrays.fill(deviceCounts, 0);
+      Arrays.fill(happyCounts, 0);
+      Arrays.fill(sadCounts, 0);
+      size = 0;
+    }
+  }
+
+  // Fibonacci hashing spreads the row and col bits of nearby tiles over the whole table.
+  private int slotOf(long tileKey) {
+    var slot = (int) ((tileKey * 0x9E3779B97F4A7C15L) >>> shift);
+    while (tileKeys[slot] != free && tileKeys[slot] != tileKey) {
+      slot = (slot + 1) & (tileKeys.length - 1);
+    }
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    tileKeys = new long[capacity];
+    Arrays.fill(tileKeys, free);
+    deviceCounts = new int[capacity];
+    happyCounts = new int[capacity];
+    sadCounts = new int[capacity];
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+  }
+
+  private void grow() {
+    final var oldTileKeys = tileKeys;
+    final var oldDeviceCounts = deviceCounts;
+    final var oldHappyCounts = happyCounts;
+    final var oldSadCounts = sadCounts;
+    allocate(tileKeys.length * 2);
+    for (int old = 0; old < oldTileKeys.length; old++) {
+      if (oldTileKeys[old] != free) {
+        final var slot = slotOf(oldTileKeys[old]);
+        tileKeys[slot] = oldTileKeys[old];
+        deviceCounts[slot] = oldDeviceCounts[old];
+        happyCounts[slot] = oldHappyCounts[old];
+        sadCounts[slot] = oldSadCounts[old];
+      }
+    }
+  }
+}
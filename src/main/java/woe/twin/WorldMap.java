@@ -4,21 +4,72 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 interface WorldMap {
 
   int zoomMax = 18;
 
+  // Entity ids are the hex digits of the region's tile key.
   static String entityIdOf(Region region) {
+    return entityIdOf(tileKeyOf(region));
+  }
+
+  static String entityIdOf(long tileKey) {
+    final var chars = new char[16];
+    var i = chars.length;
+    do {
+      chars[--i] = Character.forDigit((int) tileKey & 0xf, 16);
+      tileKey >>>= 4;
+    } while (tileKey != 0);
+    return new String(chars, i, chars.length - i);
+  }
+
+  // Parses the tile key hex digits from the given offset to the end, such as the entity id part of a persistence id.
+  static long tileKeyForEntityId(CharSequence entityId, int from) {
+    final var length = entityId.length() - from;
+    if (length < 1 || length > 16) {
+      throw new IllegalArgumentException(String.format("Entity id '%s' is not a tile key.", entityId));
+    }
+    var tileKey = 0L;
+    for (int i = from; i < entityId.length(); i++) {
+      final var digit = Character.digit(entityId.charAt(i), 16);
+      if (digit < 0) {
+        throw new IllegalArgumentException(String.format("Entity id '%s' is not a tile key.", entityId));
+      }
+      tileKey = (tileKey << 4) | digit;
+    }
+    return tileKey;
+  }
+
+  static long tileKeyForEntityId(String entityId) {
+    return isLegacyEntityId(entityId) ? tileKeyOf(regionForLegacyEntityId(entityId)) : tileKeyForEntityId(entityId, 0);
+  }
+
+  static Region regionForEntityId(String entityId) {
+    return isLegacyEntityId(entityId) ? regionForLegacyEntityId(entityId) : regionForTileKey(tileKeyForEntityId(entityId, 0));
+  }
+
+  /* Legacy entity ids are the zoom and region corners, "zoom:topLeftLat:topLeftLng:botRightLat:botRightLng".
+   * Device journals written before tile key entity ids are persisted under these ids.
+   */
+  static String legacyEntityIdOf(Region region) {
     return String.format("%d:%1.13f:%1.13f:%1.13f:%1.13f", region.zoom,
         region.topLeft.lat, region.topLeft.lng, region.botRight.lat, region.botRight.lng);
   }
 
-  static Region regionForEntityId(String entityId) {
+  static boolean isLegacyEntityId(String entityId) {
+    return entityId.indexOf(':') >= 0;
+  }
+
+  static Region regionForLegacyEntityId(String entityId) {
     final String[] fields = entityId.split(":");
     final int zoom = Integer.parseInt(fields[0]);
     final double topLeftLat = Double.parseDouble(fields[1]);
@@ -28,6 +79,168 @@ interface WorldMap {
     return new WorldMap.Region(zoom, topLeft(topLeftLat, topLeftLng), botRight(botRightLat, botRightLng));
   }
 
+  /* Tile keys pack the zoom, row, and col of a map grid region into a single long.
+   * Rows count down from lat 90, cols count right from lng -180.
+   * bits 48-52 zoom, bits 24-47 row, bits 0-23 col
+   */
+  static long tileKeyOf(int zoom, int row, int col) {
+    return ((long) zoom << 48) | ((long) row << 24) | col;
+  }
+
+  static long tileKeyOf(Region region) {
+    final var row = Math.round((90 - region.topLeft.lat) / latLengthAt(region.zoom));
+    final var col = Math.round((region.topLeft.lng + 180) / lngLengthAt(region.zoom));
+    return tileKeyOf(region.zoom, (int) row & 0xffffff, (int) col & 0xffffff);
+  }
+
+  static int zoomOf(long tileKey) {
+    return (int) (tileKey >>> 48);
+  }
+
+  static int rowOf(long tileKey) {
+    return (int) (tileKey >>> 24) & 0xffffff;
+  }
+
+  static int colOf(long tileKey) {
+    return (int) tileKey & 0xffffff;
+  }
+
+  static Region regionForTileKey(long tileKey) {
+    final var zoom = zoomOf(tileKey);
+    final var latLength = latLengthAt(zoom);
+    final var lngLength = lngLengthAt(zoom);
+    final var topLeftLat = 90 - rowOf(tileKey) * latLength;
+    final var topLeftLng = -180 + colOf(tileKey) * lngLength;
+    return region(zoom, topLeft(topLeftLat, topLeftLng), botRight(topLeftLat - latLength, topLeftLng + lngLength));
+  }
+
+  /* The Z-order (Morton) index of a tile within its zoom interleaves the row and col bits, row bits in the odd positions.
+   * Tiles that are close on the map are mostly close in Z-order, and every tile in a row and col range has a Z-order
+   * between the Z-order of the range's top left and bottom right tiles.
+   */
+  static long zOrderOf(long tileKey) {
+    return spreadBits(rowOf(tileKey)) << 1 | spreadBits(colOf(tileKey));
+  }
+
+  static long tileKeyForZOrder(int zoom, long zOrder) {
+    return tileKeyOf(zoom, compactBits(zOrder >>> 1), compactBits(zOrder));
+  }
+
+  private static long spreadBits(int value) {
+    var bits = value & 0xffffffffL;
+    bits = (bits | bits << 16) & 0x0000ffff0000ffffL;
+    bits = (bits | bits << 8) & 0x00ff00ff00ff00ffL;
+    bits = (bits | bits << 4) & 0x0f0f0f0f0f0f0f0fL;
+    bits = (bits | bits << 2) & 0x3333333333333333L;
+    return (bits | bits << 1) & 0x5555555555555555L;
+  }
+
+  private static int compactBits(long value) {
+    var bits = value & 0x5555555555555555L;
+    bits = (bits | bits >>> 1) & 0x3333333333333333L;
+    bits = (bits | bits >>> 2) & 0x0f0f0f0f0f0f0f0fL;
+    bits = (bits | bits >>> 4) & 0x00ff00ff00ff00ffL;
+    bits = (bits | bits >>> 8) & 0x0000ffff0000ffffL;
+    return (int) (bits | bits >>> 16);
+  }
+
+  /* Zoom 3 and finer tiles split into 2 x 2 sub tiles, so an ancestor's row and col are a shift away.
+   * Zoom 3 to 2 and 2 to 1 split 3 x 3, zoom 1 to 0 splits the 2 cols.
+   */
+  static long tileKeyAtZoom(int zoom, long tileKey) {
+    var tileZoom = zoomOf(tileKey);
+    var row = rowOf(tileKey);
+    var col = colOf(tileKey);
+    if (zoom < 0 || zoom > tileZoom) {
+      throw new IllegalArgumentException(String.format("Zoom %d must be in >= 0 and <= %d.", zoom, tileZoom));
+    }
+    if (tileZoom > 3) {
+      final var shift = tileZoom - Math.max(zoom, 3);
+      row >>= shift;
+      col >>= shift;
+      tileZoom -= shift;
+    }
+    for (; tileZoom > zoom; tileZoom--) {
+      final var splits = tileZoom == 1 ? 2 : 3;
+      row /= splits;
+      col /= splits;
+    }
+    return tileKeyOf(zoom, row, col);
+  }
+
+  /* Fills tileKeys with the zoom 3 to 18 ancestor chain of a device tile, tileKeys[zoom - 3].
+   * The array is intended to be reused from event to event.
+   */
+  static long[] ancestorTileKeys(long deviceTileKey, long[] tileKeys) {
+    final var row = rowOf(deviceTileKey);
+    final var col = colOf(deviceTileKey);
+    for (int zoom = 3; zoom <= zoomMax; zoom++) {
+      final var shift = zoomMax - zoom;
+      tileKeys[zoom - 3] = tileKeyOf(zoom, row >> shift, col >> shift);
+    }
+    return tileKeys;
+  }
+
+  static long[] ancestorTileKeys() {
+    return new long[zoomMax - 2];
+  }
+
+  // Devices live in zoom 18 tiles, other regions are placed by their center.
+  static long deviceTileKeyOf(Region region) {
+    return region.isDevice() ? tileKeyOf(region) : tileKeyAtLatLng(zoomMax, atCenter(region).lat, atCenter(region).lng);
+  }
+
+  // Tile lengths are powers of 2 fractions of 20 degrees from zoom 3 down, so tile edges are exact doubles.
+  static double latLengthAt(int zoom) {
+    switch (zoom) {
+      case 0:
+      case 1:
+        return 180;
+      case 2:
+        return 60;
+      default:
+        return 20.0 / (1 << (zoom - 3));
+    }
+  }
+
+  static double lngLengthAt(int zoom) {
+    switch (zoom) {
+      case 0:
+        return 360;
+      case 1:
+        return 180;
+      case 2:
+        return 60;
+      default:
+        return 20.0 / (1 << (zoom - 3));
+    }
+  }
+
+  static int rowsAt(int zoom) {
+    switch (zoom) {
+      case 0:
+      case 1:
+        return 1;
+      case 2:
+        return 3;
+      default:
+        return 9 << (zoom - 3);
+    }
+  }
+
+  static int colsAt(int zoom) {
+    switch (zoom) {
+      case 0:
+        return 1;
+      case 1:
+        return 2;
+      case 2:
+        return 6;
+      default:
+        return 18 << (zoom - 3);
+    }
+  }
+
   static LatLng topLeft(double lat, double lng) {
     return new LatLng(lat, lng);
   }
@@ -85,16 +298,49 @@ interface WorldMap {
   }
 
   static Region regionAtLatLng(int zoom, LatLng latLng) {
-    return regionAtLatLng(zoom, latLng, regionForZoom0());
+    final var tileKey = tileKeyAtLatLng(zoom, latLng.lat, latLng.lng);
+    return tileKey < 0 ? null : regionForTileKey(tileKey);
   }
 
-  private static Region regionAtLatLng(int zoom, LatLng latLng, Region region) {
-    if (zoom == region.zoom) {
-      return region;
+  /* Computes the tile directly from the lat/lng, returns -1 when the lat/lng is off the map.
+   * A lat/lng on a tile edge belongs to the tile above and to the left, which is the first
+   * matching region in the subRegionsFor order at every zoom level.
+   */
+  static long tileKeyAtLatLng(int zoom, double lat, double lng) {
+    if (zoom == 0) {
+      return tileKeyOf(0, 0, 0); // zoom 0 is the whole map
     }
-    final List<Region> subRegions = subRegionsFor(region);
-    final Optional<Region> subRegionOpt = subRegions.stream().filter(r -> r.contains(latLng)).findFirst();
-    return subRegionOpt.map(subRegion -> regionAtLatLng(zoom, latLng, subRegion)).orElse(null);
+    if (zoom < 0 || zoom > zoomMax || !(lat >= -90 && lat <= 90 && lng >= -180 && lng <= 180)) {
+      return -1;
+    }
+    return tileKeyOf(zoom, rowAtLat(zoom, lat), colAtLng(zoom, lng));
+  }
+
+  // The division may round either way, the tile edge comparisons are exact and settle the row.
+  private static int rowAtLat(int zoom, double lat) {
+    final var length = latLengthAt(zoom);
+    final var rowLast = rowsAt(zoom) - 1;
+    var row = Math.min(rowLast, Math.max(0, (int) Math.ceil((90 - lat) / length) - 1));
+    while (row > 0 && 90 - row * length <= lat) {
+      row--;
+    }
+    while (row < rowLast && 90 - (row + 1) * length > lat) {
+      row++;
+    }
+    return row;
+  }
+
+  private static int colAtLng(int zoom, double lng) {
+    final var length = lngLengthAt(zoom);
+    final var colLast = colsAt(zoom) - 1;
+    var col = Math.min(colLast, Math.max(0, (int) Math.ceil((lng + 180) / length) - 1));
+    while (col > 0 && -180 + col * length >= lng) {
+      col--;
+    }
+    while (col < colLast && -180 + (col + 1) * length < lng) {
+      col++;
+    }
+    return col;
   }
 
   static LatLng latLng(double lat, double lng) {
@@ -107,31 +353,146 @@ interface WorldMap {
   }
 
   static List<Region> regionsIn(Region area) {
-    final Region start = regionAtLatLng(area.zoom, area.topLeft);
-    List<Region> regions = new ArrayList<>(regionsInRow(area, start));
-    (new ArrayList<>(regions)).forEach(region -> regions.addAll(regionsInCol(area, region)));
-    return regions;
+    return tileKeysIn(area).mapToObj(WorldMap::regionForTileKey).collect(Collectors.toList());
   }
 
-  private static List<Region> regionsInRow(Region area, Region start) {
-    final List<Region> regions = new ArrayList<>();
-    regions.add(start);
-    Region next = start.cloneRight();
-    while (area.overlaps(next)) {
-      regions.add(next);
-      next = next.cloneRight();
-    }
-    return regions;
+  static LongStream tileKeysIn(Region area) {
+    return tileKeysIn(area, Long.MAX_VALUE, false);
   }
 
-  private static List<Region> regionsInCol(Region area, Region start) {
-    final List<Region> regions = new ArrayList<>();
-    Region next = start.cloneBelow();
-    while (area.overlaps(next)) {
-      regions.add(next);
-      next = next.cloneBelow();
+  // Streams the first limit tiles in row order without building the list of tiles that cover the area.
+  static LongStream tileKeysIn(Region area, long limit, boolean parallel) {
+    return StreamSupport.longStream(TileSpliterator.of(area, limit), parallel);
+  }
+
+  // The Z-order range of the tiles that overlap the area, an empty area has a min greater than its max.
+  static long zOrderMinIn(Region area) {
+    return TileSpliterator.of(area, Long.MAX_VALUE).zOrderMin();
+  }
+
+  static long zOrderMaxIn(Region area) {
+    return TileSpliterator.of(area, Long.MAX_VALUE).zOrderMax();
+  }
+
+  /* Covers the area with the row and col ranges of the area zoom tiles that overlap it.
+   * Tiles that only touch the area on an edge are not included, and the ranges are clipped to the map.
+   */
+  final class TileSpliterator implements Spliterator.OfLong {
+    private final int zoom;
+    private final int rowFrom;
+    private final int colFrom;
+    private final int cols;
+    private long index;
+    private final long end;
+
+    private TileSpliterator(int zoom, int rowFrom, int colFrom, int cols, long index, long end) {
+      this.zoom = zoom;
+      this.rowFrom = rowFrom;
+      this.colFrom = colFrom;
+      this.cols = cols;
+      this.index = index;
+      this.end = end;
+    }
+
+    static TileSpliterator of(Region area, long limit) {
+      final var zoom = area.zoom;
+      final var latLength = latLengthAt(zoom);
+      final var lngLength = lngLengthAt(zoom);
+      final var rowLast = rowsAt(zoom) - 1;
+      final var colLast = colsAt(zoom) - 1;
+
+      var rowFrom = clamp((int) Math.floor((90 - area.topLeft.lat) / latLength), 0, rowLast);
+      while (rowFrom > 0 && 90 - rowFrom * latLength < area.topLeft.lat) {
+        rowFrom--;
+      }
+      while (rowFrom <= rowLast && 90 - (rowFrom + 1) * latLength >= area.topLeft.lat) {
+        rowFrom++;
+      }
+      var rowTo = clamp((int) Math.ceil((90 - area.botRight.lat) / latLength) - 1, 0, rowLast);
+      while (rowTo < rowLast && 90 - (rowTo + 1) * latLength > area.botRight.lat) {
+        rowTo++;
+      }
+      while (rowTo >= 0 && 90 - rowTo * latLength <= area.botRight.lat) {
+        rowTo--;
+      }
+      var colFrom = clamp((int) Math.floor((area.topLeft.lng + 180) / lngLength), 0, colLast);
+      while (colFrom > 0 && -180 + colFrom * lngLength > area.topLeft.lng) {
+        colFrom--;
+      }
+      while (colFrom <= colLast && -180 + (colFrom + 1) * lngLength <= area.topLeft.lng) {
+        colFrom++;
+      }
+      var colTo = clamp((int) Math.ceil((area.botRight.lng + 180) / lngLength) - 1, 0, colLast);
+      while (colTo < colLast && -180 + (colTo + 1) * lngLength < area.botRight.lng) {
+        colTo++;
+      }
+      while (colTo >= 0 && -180 + colTo * lngLength >= area.botRight.lng) {
+        colTo--;
+      }
+
+      final var rows = Math.max(0, rowTo - rowFrom + 1);
+      final var cols = Math.max(0, colTo - colFrom + 1);
+      return new TileSpliterator(zoom, rowFrom, colFrom, cols, 0, Math.min((long) rows * cols, Math.max(0, limit)));
+    }
+
+    private static int clamp(int value, int min, int max) {
+      return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public boolean tryAdvance(LongConsumer action) {
+      if (index >= end) {
+        return false;
+      }
+      action.accept(tileKeyAt(index++));
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(LongConsumer action) {
+      for (; index < end; index++) {
+        action.accept(tileKeyAt(index));
+      }
+    }
+
+    long zOrderMin() {
+      return end == 0 ? 0 : zOrderOf(tileKeyAt(0));
+    }
+
+    long zOrderMax() {
+      return end == 0 ? -1 : zOrderOf(tileKeyOf(zoom, rowFrom + (int) ((end - 1) / cols), colFrom + cols - 1));
+    }
+
+    private long tileKeyAt(long index) {
+      return tileKeyOf(zoom, rowFrom + (int) (index / cols), colFrom + (int) (index % cols));
+    }
+
+    @Override
+    public Spliterator.OfLong trySplit() {
+      final var mid = index + (end - index) / 2;
+      if (mid <= index) {
+        return null;
+      }
+      final var prefix = new TileSpliterator(zoom, rowFrom, colFrom, cols, index, mid);
+      index = mid;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return end - index;
+    }
+
+    // Row order is tile key order.
+    @Override
+    public int characteristics() {
+      return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+
+    @Override
+    public Comparator<? super Long> getComparator() {
+      return null;
     }
-    return regions;
   }
 
   class LatLng implements CborSerializable {
@@ -155,7 +516,7 @@ interface WorldMap {
 
     @Override
     public int hashCode() {
-      return Objects.hash(lat, lng);
+      return 31 * Double.hashCode(lat) + Double.hashCode(lng);
     }
 
     @Override
@@ -214,6 +575,10 @@ interface WorldMap {
           && topLeft.lng <= latLng.lng && botRight.lng >= latLng.lng;
     }
 
+    long tileKey() {
+      return tileKeyOf(this);
+    }
+
     boolean isDevice() {
       return zoom == zoomMax; // devices are represented at finest zoom in level.
     }
@@ -240,7 +605,7 @@ interface WorldMap {
 
     @Override
     public int hashCode() {
-      return Objects.hash(zoom, topLeft, botRight);
+      return Long.hashCode(tileKey());
     }
 
     @Override
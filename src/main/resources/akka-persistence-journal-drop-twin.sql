@@ -2,3 +2,5 @@
 DROP TABLE IF EXISTS public.woe_twin_event_tag;
 
 DROP TABLE IF EXISTS public.woe_twin_event_journal;
+
+DROP TABLE IF EXISTS public.woe_twin_snapshot;
@@ -0,0 +1,16 @@
+-- Notifies the woe_twin_journal listeners of new tagged events, used when woe.twin.projection.journal-notify.enabled = on.
+-- One notification per insert statement and tag, the payload is the tag and the statement's highest ordering, tag:ordering.
+-- PostgreSQL sends the notifications when the inserting transaction commits.
+
+create or replace function woe_twin_event_tag_notify() returns trigger as $$
+begin
+  perform pg_notify('woe_twin_journal', tag || ':' || max(event_id)) from inserted group by tag;
+  return null;
+end;
+$$ language plpgsql;
+
+drop trigger if exists woe_twin_event_tag_notify on woe_twin_event_tag;
+
+create trigger woe_twin_event_tag_notify after insert on woe_twin_event_tag
+    referencing new table as inserted
+    for each statement execute procedure woe_twin_event_tag_notify();
@@ -0,0 +1,10 @@
+
+-- Adds the stripe column to a woe_twin_region table keyed by zoom and Z-order, needed when
+-- woe.twin.projection.stripes.count is above 0. The existing rows become stripe 0, the counts are kept.
+-- Stop the woe-twin projections before running this.
+
+alter table woe_twin_region add column if not exists stripe integer not null default 0;
+
+alter table woe_twin_region drop constraint woe_twin_region_pkey;
+
+alter table woe_twin_region add constraint woe_twin_region_pkey primary key (zoom, z_order, stripe);
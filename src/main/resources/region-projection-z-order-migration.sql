@@ -0,0 +1,24 @@
+
+-- Replaces a woe_twin_region table keyed by region lat/lng with one keyed by zoom and Z-order.
+-- Stop the woe-twin projections before running this. The projections rebuild the
+-- region counts from the start of the journal once their offsets are removed.
+-- The rebuilt counts are only right when the journal has every event, do not run
+-- this after events were deleted, see woe.twin.device.snapshot.delete-events-on-snapshot.
+
+drop table if exists woe_twin_region;
+
+create table if not exists woe_twin_region (
+    zoom            integer,
+    z_order         bigint,
+    top_left_lat    double precision,
+    top_left_lng    double precision,
+    bot_right_lat   double precision,
+    bot_right_lng   double precision,
+    device_count    integer,
+    happy_count     integer,
+    sad_count       integer,
+    stripe          integer not null default 0,
+    constraint woe_twin_region_pkey primary key (zoom, z_order, stripe)
+);
+
+delete from woe_twin_akka_projection_offset_store where projection_name = 'region-zoom-summary';
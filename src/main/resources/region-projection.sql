@@ -1,6 +1,7 @@
 
 create table if not exists woe_twin_region (
     zoom            integer,
+    z_order         bigint,
     top_left_lat    double precision,
     top_left_lng    double precision,
     bot_right_lat   double precision,
@@ -8,5 +9,16 @@ create table if not exists woe_twin_region (
     device_count    integer,
     happy_count     integer,
     sad_count       integer,
-    constraint woe_twin_region_pkey primary key (zoom, top_left_lat, top_left_lng, bot_right_lat, bot_right_lng)
+    stripe          integer not null default 0,
+    constraint woe_twin_region_pkey primary key (zoom, z_order, stripe)
+);
+
+-- Zoom 18 region deltas waiting for the rollup, used when woe.twin.projection.mode = rollup.
+create table if not exists woe_twin_region_delta (
+    delta_id        bigserial,
+    z_order         bigint,
+    device_count    integer,
+    happy_count     integer,
+    sad_count       integer,
+    constraint woe_twin_region_delta_pkey primary key (delta_id)
 );
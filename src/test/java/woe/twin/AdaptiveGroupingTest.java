@@ -0,0 +1,147 @@
+package woe.twin;
+
+import akka.NotUsed;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.persistence.query.Offset;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.projection.javadsl.SourceProvider;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveGroupingTest {
+  @ClassRule
+  public static final TestKitJunitResource testKit = new TestKitJunitResource(ConfigFactory.parseString("akka.actor.provider = local"));
+
+  private static final long ms = 1_000_000;
+
+  @Test
+  public void groupLimitGrowsToMaxWhileLagging() {
+    final var adaptiveGrouping = new AdaptiveGrouping("test", 1, 5000, Duration.ofMillis(200), Duration.ofSeconds(10));
+    final var anHourAgo = System.currentTimeMillis() - Duration.ofHours(1).toMillis();
+
+    for (int i = 0; i < 20; i++) {
+      adaptiveGrouping.handled(adaptiveGrouping.groupLimit(), adaptiveGrouping.groupLimit() * ms, anHourAgo);
+    }
+
+    assertEquals(5000, adaptiveGrouping.groupLimit());
+  }
+
+  @Test
+  public void groupLimitShrinksToTargetLatencyOnceCaughtUp() {
+    final var adaptiveGrouping = new AdaptiveGrouping("test", 1, 5000, Duration.ofMillis(200), Duration.ofSeconds(10));
+    final var anHourAgo = System.currentTimeMillis() - Duration.ofHours(1).toMillis();
+    for (int i = 0; i < 20; i++) {
+      adaptiveGrouping.handled(adaptiveGrouping.groupLimit(), adaptiveGrouping.groupLimit() * ms, anHourAgo);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      adaptiveGrouping.handled(adaptiveGrouping.groupLimit(), adaptiveGrouping.groupLimit() * ms, System.currentTimeMillis());
+    }
+
+    // 1ms per envelope, 200ms target
+    assertTrue(Math.abs(adaptiveGrouping.groupLimit() - 200) <= 2, String.format("group limit %d", adaptiveGrouping.groupLimit()));
+  }
+
+  @Test
+  public void groupLimitStaysWithinMinAndMax() {
+    final var slowHandler = new AdaptiveGrouping("test", 10, 100, Duration.ofMillis(200), Duration.ofSeconds(10));
+    slowHandler.handled(10, Duration.ofSeconds(10).toNanos(), System.currentTimeMillis());
+    assertEquals(10, slowHandler.groupLimit());
+
+    final var fastHandler = new AdaptiveGrouping("test", 10, 100, Duration.ofMillis(200), Duration.ofSeconds(10));
+    fastHandler.handled(10, 10, System.currentTimeMillis());
+    assertEquals(100, fastHandler.groupLimit());
+  }
+
+  @Test
+  public void metricsShowTheChosenValues() {
+    final var adaptiveGrouping = new AdaptiveGrouping("projection.test.tag-0", 1, 5000, Duration.ofMillis(200), Duration.ofSeconds(10));
+    adaptiveGrouping.registerMetrics();
+
+    adaptiveGrouping.handled(40, 40 * ms, System.currentTimeMillis());
+
+    assertEquals(adaptiveGrouping.groupLimit(), Metrics.snapshot().get("projection.test.tag-0.group-limit"));
+    assertEquals(40, Metrics.snapshot().get("projection.test.tag-0.batch-size"));
+    assertEquals(ms, Metrics.snapshot().get("projection.test.tag-0.handler-ns-per-envelope"));
+  }
+
+  @Test
+  public void batchesAreCappedAtTheGroupLimitAndKeepTheirLastOffset() throws Exception {
+    final var adaptiveGrouping = new AdaptiveGrouping("test", 25, 5000, Duration.ofMillis(200), Duration.ofSeconds(10));
+    final SourceProvider<Offset, List<EventEnvelope<Device.Event>>> sourceProvider = adaptiveGrouping.sourceProvider(eventsProvider(1000));
+
+    // The slow first stage lets the events pile up behind it, so the following batches are full.
+    final List<List<EventEnvelope<Device.Event>>> batches = sourceProvider.source(() -> CompletableFuture.completedFuture(Optional.empty()))
+        .toCompletableFuture().get(5, TimeUnit.SECONDS)
+        .async()
+        .map(batch -> {
+          Thread.sleep(10);
+          return batch;
+        })
+        .runWith(Sink.seq(), testKit.system())
+        .toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+    assertEquals(1000, batches.stream().mapToInt(List::size).sum());
+    assertTrue(batches.stream().allMatch(batch -> batch.size() <= 25), batches.stream().map(List::size).collect(Collectors.toList()).toString());
+    assertTrue(batches.size() < 1000);
+    final var last = batches.get(batches.size() - 1);
+    assertEquals(Offset.sequence(999), sourceProvider.extractOffset(last));
+  }
+
+  @Test
+  public void batchesAreCappedAtALimitThatDoesNotDivideMaxEnvelopes() throws Exception {
+    final var adaptiveGrouping = new AdaptiveGrouping("test", 3000, 5000, Duration.ofMillis(200), Duration.ofSeconds(10));
+    final SourceProvider<Offset, List<EventEnvelope<Device.Event>>> sourceProvider = adaptiveGrouping.sourceProvider(eventsProvider(12000));
+
+    final List<List<EventEnvelope<Device.Event>>> batches = sourceProvider.source(() -> CompletableFuture.completedFuture(Optional.empty()))
+        .toCompletableFuture().get(5, TimeUnit.SECONDS)
+        .async()
+        .map(batch -> {
+          Thread.sleep(10);
+          return batch;
+        })
+        .runWith(Sink.seq(), testKit.system())
+        .toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+    final var sizes = batches.stream().map(List::size).collect(Collectors.toList());
+    assertEquals(12000, sizes.stream().mapToInt(Integer::intValue).sum());
+    assertEquals(3000, sizes.stream().mapToInt(Integer::intValue).max().orElse(0), sizes.toString());
+    assertEquals(List.of(List.of(1, 2), List.of(3, 4), List.of(5)), AdaptiveGrouping.split(List.of(1, 2, 3, 4, 5), 2));
+  }
+
+  private static SourceProvider<Offset, EventEnvelope<Device.Event>> eventsProvider(int count) {
+    return new SourceProvider<>() {
+      @Override
+      public CompletionStage<Source<EventEnvelope<Device.Event>, NotUsed>> source(Supplier<CompletionStage<Optional<Offset>>> offset) {
+        return CompletableFuture.completedFuture(Source.from(IntStream.range(0, count)
+            .mapToObj(i -> EventEnvelope.<Device.Event>create(Offset.sequence(i), "Device|0", i + 1, new Device.DeviceActivated(), 0))
+            .collect(Collectors.toList())));
+      }
+
+      @Override
+      public Offset extractOffset(EventEnvelope<Device.Event> eventEnvelope) {
+        return eventEnvelope.offset();
+      }
+
+      @Override
+      public long extractCreationTime(EventEnvelope<Device.Event> eventEnvelope) {
+        return eventEnvelope.timestamp();
+      }
+    };
+  }
+}
@@ -0,0 +1,72 @@
+package woe.twin;
+
+import akka.persistence.query.Offset;
+import akka.projection.eventsourced.EventEnvelope;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static woe.twin.WorldMap.*;
+
+public class DeviceProjectionRollupTest {
+  @Test
+  public void foldMatchesSummariesAtEachZoom() {
+    final List<EventEnvelope<Device.Event>> eventEnvelopes = eventEnvelopes();
+    final RegionStore.RegionSummaries zoom18 = new RegionStore.RegionSummaries(zoomMax);
+    eventEnvelopes.forEach(zoom18::add);
+    final Map<Long, RegionStore.RegionSummary> deltas = new TreeMap<>();
+    zoom18.asList().forEach(summary -> deltas.put(zOrderOf(summary.region.tileKey()), summary));
+
+    final List<RegionStore.RegionSummary> expected = new ArrayList<>();
+    for (int zoom = 3; zoom < zoomMax; zoom++) {
+      final RegionStore.RegionSummaries regionSummaries = new RegionStore.RegionSummaries(zoom);
+      eventEnvelopes.forEach(regionSummaries::add);
+      expected.addAll(regionSummaries.asList());
+    }
+
+    assertEquals(toStrings(expected), toStrings(DeviceProjectionRollup.fold(deltas)));
+  }
+
+  @Test
+  public void foldIsInPrimaryKeyOrder() {
+    final Map<Long, RegionStore.RegionSummary> deltas = new TreeMap<>();
+    eventEnvelopes().forEach(eventEnvelope -> {
+      final var tileKey = Device.tileKeyForPersistenceId(eventEnvelope.persistenceId());
+      deltas.put(zOrderOf(tileKey), new RegionStore.RegionSummary(regionForTileKey(tileKey), 1, 1, 0));
+    });
+
+    final List<RegionStore.RegionSummary> folded = DeviceProjectionRollup.fold(deltas);
+
+    for (int i = 1; i < folded.size(); i++) {
+      final var previous = folded.get(i - 1).region;
+      final var region = folded.get(i).region;
+      assertTrue(previous.zoom < region.zoom || previous.zoom == region.zoom && zOrderOf(previous.tileKey()) < zOrderOf(region.tileKey()));
+    }
+    assertEquals(3, folded.get(0).region.zoom);
+    assertEquals(zoomMax - 1, folded.get(folded.size() - 1).region.zoom);
+  }
+
+  // Device events spread over London, so coarse zooms fold many devices into one region.
+  private static List<EventEnvelope<Device.Event>> eventEnvelopes() {
+    final var random = new Random(18);
+    final List<EventEnvelope<Device.Event>> eventEnvelopes = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      final var lat = 51.3 + random.nextDouble() * 0.4;
+      final var lng = -0.5 + random.nextDouble() * 0.7;
+      final var persistenceId = Device.persistenceIdOf(entityIdOf(regionAtLatLng(zoomMax, latLng(lat, lng))), false).id();
+      final Device.Event event = i % 3 == 0 ? new Device.DeviceMadeSad() : new Device.DeviceActivated();
+      eventEnvelopes.add(EventEnvelope.create(Offset.sequence(i), persistenceId, 1, event, 0));
+    }
+    return eventEnvelopes;
+  }
+
+  private static List<String> toStrings(List<RegionStore.RegionSummary> regionSummaries) {
+    return regionSummaries.stream().map(RegionStore.RegionSummary::toString).collect(Collectors.toList());
+  }
+}
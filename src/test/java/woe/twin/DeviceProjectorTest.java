@@ -20,6 +20,7 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
@@ -77,9 +78,9 @@ public class DeviceProjectorTest {
             }
         );
 
-    final DeviceProjectorSingleZoom.DbSessionFactory dbSessionFactory = new DeviceProjectorSingleZoom.DbSessionFactory(testKit.system());
+    final RegionStore.DbSessionFactory dbSessionFactory = new RegionStore.DbSessionFactory(testKit.system());
     final RegionSummaryReader regionSummaryReader = new RegionSummaryReader();
-    projectionTestKit.run(DeviceProjectorSingleZoom.start(testKit.system(), dbSessionFactory, "entity-12", 3), () ->
+    projectionTestKit.run(DeviceProjectorAllZooms.start(testKit.system(), dbSessionFactory, Optional.empty(), "0", RegionStripes.none), () ->
         regionSummaryReader.read("No-op")
             .toCompletableFuture().get(1, TimeUnit.SECONDS)
     );
@@ -0,0 +1,160 @@
+package woe.twin;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializers;
+import akka.serialization.jackson.JacksonObjectMapperProvider;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.NotSerializableException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static woe.twin.WorldMap.*;
+
+public class DeviceSerializerTest {
+  @ClassRule
+  public static final TestKitJunitResource testKit = new TestKitJunitResource(config());
+
+  private static Config config() {
+    return ConfigFactory.parseString("akka.actor.provider = local")
+        .withFallback(ConfigFactory.load("application-test.conf"));
+  }
+
+  private static final WorldMap.Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+
+  @Test
+  public void deviceProtocolUsesDeviceSerializer() {
+    final Serialization serialization = SerializationExtension.get(testKit.system().classicSystem());
+
+    assertEquals(DeviceSerializer.identifier, serialization.findSerializerFor(new Device.DeviceMadeSad()).identifier());
+    assertEquals(DeviceSerializer.identifier, serialization.findSerializerFor(new Device.TelemetryPingCommand(region, null)).identifier());
+    assertEquals(DeviceSerializer.identifier, serialization.findSerializerFor(Device.Passivate.INSTANCE).identifier());
+    assertEquals(DeviceSerializer.identifier, serialization.findSerializerFor(new Device.State(region)).identifier());
+    assertEquals(DeviceSerializer.identifier, serialization.findSerializerFor(region).identifier());
+  }
+
+  @Test
+  public void eventsRoundTrip() {
+    for (Device.Event event : events()) {
+      assertEquals(event.getClass(), roundTrip(event).getClass());
+    }
+  }
+
+  @Test
+  public void eventIsOnlyTheManifest() {
+    final Serialization serialization = SerializationExtension.get(testKit.system().classicSystem());
+
+    assertEquals(0, serialization.serialize(new Device.DeviceMadeSad()).get().length);
+  }
+
+  @Test
+  public void sampledEventCarriesIngressTime() {
+    final Serialization serialization = SerializationExtension.get(testKit.system().classicSystem());
+    final var event = new Device.DeviceMadeSad(1_600_000_000_123L);
+
+    assertEquals(8, serialization.serialize(event).get().length);
+    assertEquals(1_600_000_000_123L, ((Device.DeviceEvent) roundTrip(event)).ingressMs);
+    assertEquals(0, ((Device.DeviceEvent) roundTrip(new Device.DeviceMadeSad())).ingressMs);
+  }
+
+  @Test
+  public void commandCarriesIngressTime() {
+    final Serialization serialization = SerializationExtension.get(testKit.system().classicSystem());
+    final var command = new Device.TelemetryCreateCommand(region, null, 1_600_000_000_123L);
+    final var bytes = serialization.serialize(command).get();
+    final var withoutIngress = Arrays.copyOf(bytes, bytes.length - 8);
+
+    assertEquals(1_600_000_000_123L, ((Device.TelemetryCommand) roundTrip(command)).ingressMs);
+    assertEquals(0, ((Device.TelemetryCommand) serialization.deserialize(withoutIngress, DeviceSerializer.identifier, "TC").get()).ingressMs);
+  }
+
+  @Test
+  public void readsJournalRowsWithRegionEvents() {
+    final Serialization serialization = SerializationExtension.get(testKit.system().classicSystem());
+    final byte[] regionBytes = serialization.serialize(region).get();
+
+    for (Device.Event event : events()) {
+      final String manifest = Serializers.manifestFor(serialization.findSerializerFor(event), event);
+      assertEquals(event.getClass(), serialization.deserialize(regionBytes, DeviceSerializer.identifier, manifest).get().getClass());
+    }
+  }
+
+  @Test
+  public void commandKeepsReplyTo() {
+    final TestProbe<Device.TelemetryResponse> probe = testKit.createTestProbe();
+    final Device.TelemetryCommand command = (Device.TelemetryCommand) roundTrip(new Device.TelemetrySadCommand(region, probe.ref()));
+
+    assertEquals(region, command.region);
+    assertEquals(probe.ref(), command.replyTo);
+    assertNull(((Device.TelemetryCommand) roundTrip(new Device.TelemetryHappyCommand(region, null))).replyTo);
+  }
+
+  @Test
+  public void responseOnlyCarriesRegion() {
+    final TestProbe<Device.TelemetryResponse> probe = testKit.createTestProbe();
+    final Device.TelemetryResponse response = (Device.TelemetryResponse) roundTrip(new Device.TelemetryCreateResponse(new Device.TelemetryCreateCommand(region, probe.ref())));
+
+    assertTrue(response instanceof Device.TelemetryCreateResponse);
+    assertTrue(response.telemetryCommand instanceof Device.TelemetryCreateCommand);
+    assertEquals(region, response.telemetryCommand.region);
+    assertNull(response.telemetryCommand.replyTo);
+  }
+
+  @Test
+  public void stateRoundTrip() {
+    final Device.State state = new Device.State(region);
+    state.deviceActivated(new Device.DeviceActivated());
+    state.deviceMadeSad(new Device.DeviceMadeSad());
+
+    assertEquals(state, roundTrip(state));
+  }
+
+  @Test
+  public void regionsThatAreNotTilesRoundTrip() {
+    final WorldMap.Region selection = region(18, topLeft(51.50458547797352, -0.12260913848876955), botRight(51.497659673380355, -0.11235773563385011));
+
+    assertEquals(selection, roundTrip(selection));
+    assertEquals(regionForZoom0(), roundTrip(regionForZoom0()));
+    subRegionsFor(regionForZoom0()).forEach(r -> assertEquals(r, roundTrip(r)));
+  }
+
+  // Jackson journal rows were written from events with a region field.
+  @Test
+  public void readsJacksonCborJournalRows() throws NotSerializableException, JsonProcessingException {
+    final Serialization serialization = SerializationExtension.get(testKit.system().classicSystem());
+    final var jacksonCbor = serialization.serializerFor(WorldMap.LatLng.class);
+    final var objectMapper = JacksonObjectMapperProvider.get(testKit.system().classicSystem()).getOrCreate("jackson-cbor", Optional.empty());
+    final byte[] bytes = objectMapper.writeValueAsBytes(Map.of("region", region));
+
+    final Object fromJournal = serialization.deserialize(bytes, jacksonCbor.identifier(), Device.DeviceMadeHappy.class.getName()).get();
+
+    assertTrue(fromJournal instanceof Device.DeviceMadeHappy);
+  }
+
+  private static List<Device.Event> events() {
+    return List.of(
+        new Device.DeviceActivated(),
+        new Device.DeviceDeactivatedHappy(),
+        new Device.DeviceDeactivatedSad(),
+        new Device.DeviceMadeHappy(),
+        new Device.DeviceMadeSad(),
+        new Device.DevicePinged());
+  }
+
+  private static Object roundTrip(Object o) {
+    final Serialization serialization = SerializationExtension.get(testKit.system().classicSystem());
+    final var serializer = serialization.findSerializerFor(o);
+    final byte[] bytes = serializer.toBinary(o);
+    return serialization.deserialize(bytes, serializer.identifier(), Serializers.manifestFor(serializer, o)).get();
+  }
+}
@@ -5,6 +5,7 @@ import akka.cluster.Cluster;
 import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.Entity;
 import akka.cluster.sharding.typed.javadsl.EntityRef;
+import akka.persistence.typed.javadsl.SnapshotCountRetentionCriteria;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import org.junit.BeforeClass;
@@ -17,6 +18,7 @@ import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static woe.twin.WorldMap.*;
 
@@ -67,11 +69,59 @@ public class DeviceTest {
   @Test
   public void tagsForCreatesTagsForZoom3to18() {
     final WorldMap.Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
-    final Set<String> tags = Device.tagsFor(region, 100);
+    final Set<String> tags = Device.tagsFor(region, 100, false);
 
     assertEquals(1, tags.size());
   }
 
+  @Test
+  public void tagsForHashesTheLegacyEntityIdWhenConfigured() {
+    final WorldMap.Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+
+    assertEquals(Set.of("" + Math.abs(legacyEntityIdOf(region).hashCode() % 100)), Device.tagsFor(region, 100, true));
+    assertEquals(Set.of("" + Math.abs(entityIdOf(region).hashCode() % 100)), Device.tagsFor(region, 100, false));
+  }
+
+  @Test
+  public void persistenceIdUsesLegacyEntityIdWhenConfigured() {
+    final WorldMap.Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+
+    assertEquals("Device|" + legacyEntityIdOf(region), Device.persistenceIdOf(entityIdOf(region), true).id());
+    assertEquals("Device|" + legacyEntityIdOf(region), Device.persistenceIdOf(legacyEntityIdOf(region), true).id());
+    assertEquals("Device|" + entityIdOf(region), Device.persistenceIdOf(entityIdOf(region), false).id());
+  }
+
+  @Test
+  public void tileKeyForPersistenceIdInEitherFormat() {
+    final WorldMap.Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+
+    assertEquals(region.tileKey(), Device.tileKeyForPersistenceId(Device.persistenceIdOf(entityIdOf(region), false).id()));
+    assertEquals(region.tileKey(), Device.tileKeyForPersistenceId(Device.persistenceIdOf(entityIdOf(region), true).id()));
+  }
+
+  @Test
+  public void retentionCriteriaBasedOnConfigSettings() {
+    final Config config = testKit.system().settings().config();
+    final Config disabled = ConfigFactory.parseString(String.format("%s = 0", Device.snapshotEveryNEventsSetting)).withFallback(config);
+
+    assertTrue(Device.isSnapshotEnabled(config));
+    assertTrue(Device.retentionCriteriaFor(config) instanceof SnapshotCountRetentionCriteria);
+    assertFalse(Device.isSnapshotEnabled(disabled));
+    assertFalse(Device.retentionCriteriaFor(disabled) instanceof SnapshotCountRetentionCriteria);
+  }
+
+  @Test
+  public void serializationDeserializationState() {
+    final SerializationTestKit serializationTestKit = ActorTestKit.create(testKit.system()).serializationTestKit();
+    final Device.State state = new Device.State(regionAtLatLng(18, latLng(51.5007541, -0.11688530)));
+
+    serializationTestKit.verifySerialization(state, true);
+    state.deviceActivated(new Device.DeviceActivated());
+    serializationTestKit.verifySerialization(state, true);
+    state.deviceMadeSad(new Device.DeviceMadeSad());
+    serializationTestKit.verifySerialization(state, true);
+  }
+
   @Test
   public void tagsAllBasedOnConfigSettings() {
     final int numberOfShards = testKit.system().settings().config().getInt(Device.tagCountSetting);
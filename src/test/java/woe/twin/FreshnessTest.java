@@ -0,0 +1,57 @@
+package woe.twin;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import akka.persistence.query.Offset;
+import akka.projection.eventsourced.EventEnvelope;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreshnessTest {
+  @Test
+  public void samplesEveryNRequests() {
+    final var freshness = new Freshness(4);
+
+    assertEquals(2, IntStream.range(0, 8).filter(i -> freshness.ingressMs() > 0).count());
+    assertEquals(0, IntStream.range(0, 8).filter(i -> new Freshness(0).ingressMs() > 0).count());
+  }
+
+  @Test
+  public void recordsSampledEventsAfterCommit() {
+    final var samples = new Freshness.Samples(0);
+    final List<Runnable> afterCommit = new ArrayList<>();
+    final var before = Freshness.histogram(17).count();
+
+    samples.add(envelope(new Device.DeviceActivated(), 1));
+    samples.add(envelope(new Device.DeviceMadeSad(System.currentTimeMillis() - 250), 1));
+    samples.afterCommit(afterCommit::add, 17, 18);
+    assertEquals(before, Freshness.histogram(17).count());
+
+    afterCommit.forEach(Runnable::run);
+    assertEquals(before + 1, Freshness.histogram(17).count());
+    assertTrue(Freshness.histogram(18).percentile(0.5) >= 127);
+  }
+
+  @Test
+  public void skipsEventsPersistedBeforeTheHandlerStarted() {
+    final var startedMs = System.currentTimeMillis();
+    final var samples = new Freshness.Samples(startedMs);
+    final List<Runnable> afterCommit = new ArrayList<>();
+    final var replaysSkipped = Freshness.replaysSkipped.sum();
+
+    samples.add(envelope(new Device.DeviceMadeSad(startedMs - Duration.ofHours(2).toMillis()), startedMs - Duration.ofHours(2).toMillis()));
+    samples.afterCommit(afterCommit::add, 16, 16);
+
+    assertTrue(afterCommit.isEmpty());
+    assertEquals(replaysSkipped + 1, Freshness.replaysSkipped.sum());
+  }
+
+  private static EventEnvelope<Device.Event> envelope(Device.Event event, long timestampMs) {
+    return EventEnvelope.create(Offset.sequence(1), "Device|1", 1, event, timestampMs);
+  }
+}
@@ -0,0 +1,130 @@
+package woe.twin;
+
+import akka.NotUsed;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.postgresql.PGConnection;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NotifiedEventsByTagTest {
+  @ClassRule
+  public static final TestKitJunitResource testKit = new TestKitJunitResource(ConfigFactory.parseString("akka.actor.provider = local"));
+
+  private final List<EventEnvelope<Device.Event>> journal = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void notificationsWakeTheSourceWithoutPolling() throws Exception {
+    final var queueAndHub = Source.<String>queue(16, OverflowStrategy.dropHead()).toMat(BroadcastHub.of(String.class, 16), Keep.both()).run(testKit.system());
+    final var notified = new NotifiedEventsByTag(this::currentEventsByTag, queueAndHub.second(), Duration.ofMinutes(1), Duration.ofMillis(20), 50);
+    final var fallbackQueries = notified.fallbackQueries.sum();
+    append(1, 2);
+
+    final var events = notified.eventsByTag("0", 0).take(5).runWith(Sink.seq(), testKit.system()).toCompletableFuture();
+    Thread.sleep(200);
+    append(3, 3);
+    queueAndHub.first().offer("1:3");
+    queueAndHub.first().offer("0:3");
+    Thread.sleep(200);
+    // Notified before the read journal returns the events, the source queries again until it reads them.
+    queueAndHub.first().offer("0:5");
+    Thread.sleep(100);
+    append(4, 5);
+
+    assertEquals(LongStream.rangeClosed(1, 5).boxed().collect(Collectors.toList()), events.get(3, TimeUnit.SECONDS).stream()
+        .map(eventEnvelope -> ((Sequence) eventEnvelope.offset()).value()).collect(Collectors.toList()));
+    assertEquals(fallbackQueries, notified.fallbackQueries.sum());
+  }
+
+  @Test
+  public void retriesStopWhenTheNotifiedEventIsNeverRead() throws Exception {
+    final var queueAndHub = Source.<String>queue(16, OverflowStrategy.dropHead()).toMat(BroadcastHub.of(String.class, 16), Keep.both()).run(testKit.system());
+    final var notified = new NotifiedEventsByTag(this::currentEventsByTag, queueAndHub.second(), Duration.ofMinutes(1), Duration.ofMillis(10), 3);
+    final var retryQueries = notified.retryQueries.sum();
+    final var retriesAbandoned = notified.retriesAbandoned.sum();
+    append(1, 2);
+
+    final var events = notified.eventsByTag("0", 0).take(3).runWith(Sink.seq(), testKit.system()).toCompletableFuture();
+    Thread.sleep(200);
+    // Ordering 3 is deleted before the source reads it.
+    queueAndHub.first().offer("0:3");
+    Thread.sleep(300);
+
+    assertTrue(notified.retryQueries.sum() - retryQueries <= 3);
+    assertEquals(retriesAbandoned + 1, notified.retriesAbandoned.sum());
+
+    // A later notification still wakes the source.
+    append(4, 4);
+    queueAndHub.first().offer("0:4");
+    assertEquals(List.of(1L, 2L, 4L), events.get(3, TimeUnit.SECONDS).stream()
+        .map(eventEnvelope -> ((Sequence) eventEnvelope.offset()).value()).collect(Collectors.toList()));
+  }
+
+  // Needs a local PostgreSQL with the journal tables and journal-notify.sql, see README-database-postgresql-local.
+  @Ignore
+  @Test
+  public void journalTriggerNotifiesTagAndOrdering() throws SQLException {
+    final var config = ConfigFactory.load("application-test.conf");
+    final var url = config.getString("woe.twin.sql.url");
+    final var username = config.getString("woe.twin.sql.username");
+    final var password = config.getString("woe.twin.sql.password");
+
+    try (var listener = DriverManager.getConnection(url, username, password);
+        var writer = DriverManager.getConnection(url, username, password)) {
+      listener.createStatement().execute("listen " + NotifiedEventsByTag.channel);
+      writer.setAutoCommit(false);
+      try (var statement = writer.createStatement()) {
+        final var resultSet = statement.executeQuery("insert into woe_twin_event_journal"
+            + " (persistence_id, sequence_number, writer, write_timestamp, event_ser_id, event_ser_manifest, event_payload)"
+            + " values ('Device|notify-test', 1, 'test', 0, 0, '', ''::bytea) returning ordering");
+        resultSet.next();
+        final var ordering = resultSet.getLong(1);
+        statement.executeUpdate(String.format("insert into woe_twin_event_tag (event_id, tag) values (%d, 'notify-test')", ordering));
+        writer.rollback();
+        assertNull(listener.unwrap(PGConnection.class).getNotifications(500));
+
+        statement.executeQuery("insert into woe_twin_event_journal"
+            + " (persistence_id, sequence_number, writer, write_timestamp, event_ser_id, event_ser_manifest, event_payload)"
+            + " values ('Device|notify-test', 1, 'test', 0, 0, '', ''::bytea) returning ordering").next();
+        statement.executeUpdate("insert into woe_twin_event_tag (event_id, tag) select ordering, 'notify-test' from woe_twin_event_journal where persistence_id = 'Device|notify-test'");
+        writer.commit();
+        final var notifications = listener.unwrap(PGConnection.class).getNotifications(5000);
+        assertNotNull(notifications);
+        assertTrue(notifications[0].getParameter().startsWith("notify-test:"));
+
+        statement.executeUpdate("delete from woe_twin_event_journal where persistence_id = 'Device|notify-test'");
+        writer.commit();
+      }
+    }
+  }
+
+  private void append(long from, long to) {
+    LongStream.rangeClosed(from, to).forEach(ordering ->
+        journal.add(EventEnvelope.create(Offset.sequence(ordering), "Device|" + ordering, 1, new Device.DeviceActivated(), 0)));
+  }
+
+  private Source<EventEnvelope<Device.Event>, NotUsed> currentEventsByTag(String tag, long offset) {
+    return Source.from(journal.stream().filter(eventEnvelope -> ((Sequence) eventEnvelope.offset()).value() > offset).collect(Collectors.toList()));
+  }
+}
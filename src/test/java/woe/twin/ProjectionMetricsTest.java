@@ -0,0 +1,53 @@
+package woe.twin;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import akka.persistence.query.Offset;
+import akka.projection.eventsourced.EventEnvelope;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProjectionMetricsTest {
+  @Test
+  public void histogramPercentilesAreBucketUpperBounds() {
+    final var histogram = Metrics.histogram("test.histogram-percentiles");
+    IntStream.rangeClosed(1, 100).forEach(histogram::record);
+
+    final var snapshot = Metrics.snapshot();
+    assertEquals(100, snapshot.get("test.histogram-percentiles.count"));
+    assertEquals(5050, snapshot.get("test.histogram-percentiles.sum"));
+    assertEquals(100, snapshot.get("test.histogram-percentiles.max"));
+    assertEquals(63, snapshot.get("test.histogram-percentiles.p50"));
+    assertEquals(100, snapshot.get("test.histogram-percentiles.p90"));
+    assertEquals(100, snapshot.get("test.histogram-percentiles.p99"));
+  }
+
+  @Test
+  public void sqlIsSampledEveryNBatches() {
+    final var sampled = new ProjectionMetrics("test.sql-sampled", 3);
+    final var off = new ProjectionMetrics("test.sql-off", 0);
+
+    assertEquals(List.of(false, false, true, false, false, true),
+        IntStream.range(0, 6).mapToObj(i -> sampled.sampleSql()).collect(Collectors.toList()));
+    assertFalse(IntStream.range(0, 6).anyMatch(i -> off.sampleSql()));
+  }
+
+  @Test
+  public void batchCountsEventsAndOffsetLag() {
+    final var projectionMetrics = new ProjectionMetrics("test.batch", 0);
+    final List<EventEnvelope<String>> batch = IntStream.rangeClosed(11, 15)
+        .mapToObj(i -> EventEnvelope.create(Offset.sequence(i), "Device|1", i, "event", System.currentTimeMillis()))
+        .collect(Collectors.toList());
+
+    projectionMetrics.batch(batch);
+    ProjectionMetrics.journalHead(20);
+
+    assertEquals(5, projectionMetrics.eventsIn.sum());
+    assertEquals(1, projectionMetrics.batchSize.count());
+    assertEquals(5, projectionMetrics.offsetLag());
+  }
+}
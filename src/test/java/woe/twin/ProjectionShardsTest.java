@@ -0,0 +1,69 @@
+package woe.twin;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import akka.persistence.query.Offset;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static woe.twin.WorldMap.*;
+
+public class ProjectionShardsTest {
+  @Test
+  public void shardsAreNonNegativeAndEven() {
+    final var shardCount = 7;
+    final var counts = new int[shardCount];
+    for (int row = 0; row < 100; row++) {
+      for (int col = 0; col < 100; col++) {
+        counts[ProjectionShards.shardOf(tileKeyOf(18, 100_000 + row, 200_000 + col), shardCount)]++;
+      }
+    }
+
+    final var expected = 100 * 100 / shardCount;
+    for (int count : counts) {
+      assertTrue(Math.abs(count - expected) < expected / 10, String.format("shard count %d, expected about %d", count, expected));
+    }
+  }
+
+  @Test
+  public void handoverFromLatestPreviousLayout() {
+    final var handover = ProjectionShards.handover(3, List.of(
+        new ProjectionShards.StoredOffset("zoom-8-shard-0", 50, 1),
+        new ProjectionShards.StoredOffset("zoom-8-shard-0-of-2", 100, 10),
+        new ProjectionShards.StoredOffset("zoom-8-shard-1-of-2", 120, 11),
+        new ProjectionShards.StoredOffset("zoom-8-shard-2-of-3", 200, 12)));
+
+    assertEquals(ProjectionShards.Assignment.mixed, handover.assignment);
+    assertEquals(2, handover.shardCount);
+    assertEquals(Optional.of(Offset.sequence(100)), handover.startOffset());
+
+    final var tileKey = tileKeyOf(regionAtLatLng(8, latLng(51.5007541, -0.11688530)));
+    final var previousOffset = ProjectionShards.shardOf(tileKey, 2) == 0 ? 100 : 120;
+    assertTrue(handover.counted(tileKey, previousOffset));
+    assertFalse(handover.counted(tileKey, previousOffset + 1));
+  }
+
+  @Test
+  public void handoverFromLegacyKeys() {
+    final var handover = ProjectionShards.handover(2, List.of(
+        new ProjectionShards.StoredOffset("zoom-8-shard-0", 50, 1),
+        new ProjectionShards.StoredOffset("zoom-8-shard-1", 70, 1)));
+
+    assertEquals(ProjectionShards.Assignment.legacy, handover.assignment);
+    assertEquals(2, handover.shardCount);
+    assertEquals(Optional.of(Offset.sequence(50)), handover.startOffset());
+    assertThrows(IllegalStateException.class, handover::requireComplete);
+    assertSame(ProjectionShards.Handover.none, ProjectionShards.Handover.none.requireComplete());
+  }
+
+  @Test
+  public void noHandoverForTheCurrentLayout() {
+    final var handover = ProjectionShards.handover(2, List.of(new ProjectionShards.StoredOffset("zoom-8-shard-0-of-2", 100, 10)));
+
+    assertTrue(handover.isNone());
+    assertEquals(Optional.empty(), handover.startOffset());
+    assertFalse(handover.counted(tileKeyOf(8, 1, 1), 0));
+  }
+}
@@ -0,0 +1,61 @@
+package woe.twin;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.typesafe.config.ConfigFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static woe.twin.WorldMap.*;
+
+public class RegionRebuildTest {
+  @Test
+  public void rangesCoverTheJournalOnce() {
+    assertEquals(List.of(10L, 32L, 55L, 77L, 100L), RegionRebuild.ranges(10, 100, 4));
+    assertEquals(List.of(0L, 1L, 2L), RegionRebuild.ranges(0, 2, 8));
+    assertEquals(List.of(5L), RegionRebuild.ranges(5, 5, 8));
+  }
+
+  @Test
+  public void summariesAreZoom3To18InKeyOrder() {
+    final var zoom18 = new RegionStore.RegionSummaries(18);
+    final var london = tileKeyOf(regionAtLatLng(18, latLng(51.5007541, -0.11688530)));
+    final var paris = tileKeyOf(regionAtLatLng(18, latLng(48.85, 2.35)));
+    zoom18.add(new Device.DeviceActivated(), london);
+    zoom18.add(new Device.DeviceActivated(), paris);
+    final var partial = new RegionStore.RegionSummaries(18);
+    partial.add(new Device.DeviceMadeSad(), london);
+    zoom18.addAll(partial);
+
+    final var summaries = RegionRebuild.summaries(zoom18);
+
+    final var keys = summaries.stream().map(summary -> summary.region.zoom * (1L << 40) + zOrderOf(summary.region.tileKey())).collect(Collectors.toList());
+    assertEquals(keys.stream().sorted().collect(Collectors.toList()), keys);
+    assertEquals(3, summaries.get(0).region.zoom);
+    assertEquals(18, summaries.get(summaries.size() - 1).region.zoom);
+    final var londonSummary = summaries.stream().filter(summary -> summary.region.tileKey() == london).findFirst().orElseThrow();
+    assertEquals(1, londonSummary.deviceCount);
+    assertEquals(0, londonSummary.happyCount);
+    assertEquals(1, londonSummary.sadCount);
+  }
+
+  @Test
+  public void refusesWhenEventsAreDeletedOnSnapshot() {
+    RegionRebuild.requireAllEventsKept(ConfigFactory.parseString("woe.twin.device.snapshot.delete-events-on-snapshot = off"));
+    assertThrows(IllegalStateException.class,
+        () -> RegionRebuild.requireAllEventsKept(ConfigFactory.parseString("woe.twin.device.snapshot.delete-events-on-snapshot = on")));
+  }
+
+  @Test
+  public void offsetsForTheConfiguredMode() {
+    final var filtered = ConfigFactory.parseString("woe.twin.projection { mode = filtered, shards = 3 }");
+    final var rollup = ConfigFactory.parseString("woe.twin.projection { mode = rollup, shards = 3 }");
+
+    final var filteredOffsets = RegionRebuild.projectionOffsets(filtered, List.of("0", "1"));
+    assertEquals(16 * 3, filteredOffsets.size());
+    assertEquals("zoom-3-shard-0-of-3", filteredOffsets.get(0)[1]);
+    assertEquals(List.of("region-rollup-summary"), RegionRebuild.projectionOffsets(rollup, List.of("0", "1")).stream().map(o -> o[0]).distinct().collect(Collectors.toList()));
+  }
+}
@@ -38,7 +38,7 @@ public class RegionSqlTest {
     final int zoom = 8;
     final long devicesPerZoom = Math.round(Math.pow(4, 18 - zoom));
     final DataSource dataSource = dataSource(testKit.system());
-    final List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries = regionSummaries(regionAtLatLng(zoom, new WorldMap.LatLng(48.85, 2.35)));
+    final List<RegionStore.RegionSummary> regionSummaries = regionSummaries(regionAtLatLng(zoom, new WorldMap.LatLng(48.85, 2.35)));
 
     testKit.system().log().info("{} rows created", String.format("%,d", regionSummaries.size()));
     assertTrue(regionSummaries.size() > devicesPerZoom);
@@ -52,7 +52,7 @@ public class RegionSqlTest {
     final int zoom = 8;
     final long devicesPerZoom = Math.round(Math.pow(4, 18 - zoom));
     final DataSource dataSource = dataSource(testKit.system());
-    final List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries = regionSummaries(regionAtLatLng(zoom, new WorldMap.LatLng(33.75, -82.39)));
+    final List<RegionStore.RegionSummary> regionSummaries = regionSummaries(regionAtLatLng(zoom, new WorldMap.LatLng(33.75, -82.39)));
 
     testKit.system().log().info("{} rows created", String.format("%,d", regionSummaries.size()));
     assertTrue(regionSummaries.size() > devicesPerZoom);
@@ -60,6 +60,32 @@ public class RegionSqlTest {
     insertUpdate(dataSource, 1000, regionSummaries);
   }
 
+  // Upserts the zoom 8 Paris regions in projection sized batches with each region writer, twice, so the second
+  // pass is all conflict updates as in a running projection. Prepared statements are warmed up by the first pass.
+  @Ignore
+  @Test
+  public void upsertThroughputByRegionWriter() throws SQLException {
+    final int batchSize = testKit.system().settings().config().getInt("woe.twin.projection.group-after-envelopes");
+    final DataSource dataSource = dataSource(testKit.system());
+    final List<RegionStore.RegionSummary> regionSummaries = regionSummaries(regionAtLatLng(8, new WorldMap.LatLng(48.85, 2.35)));
+
+    for (RegionUpsert.Writer writer : RegionUpsert.Writer.values()) {
+      for (int pass = 1; pass <= 2; pass++) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < regionSummaries.size(); i += batchSize) {
+          final List<RegionStore.RegionSummary> batch = regionSummaries.subList(i, Math.min(i + batchSize, regionSummaries.size()));
+          try (Connection connection = dataSource.getConnection()) {
+            RegionUpsert.write(connection, writer, RegionUpsert.rows(batch), () -> RegionUpsert.sql(batch));
+            connection.commit();
+          }
+        }
+        final long elapsed = System.nanoTime() - start;
+        testKit.system().log().info("{}", String.format("%-9s pass %d, rows %,d, batch %d, %,dns, %,.0f rows/s",
+            writer, pass, regionSummaries.size(), batchSize, elapsed, regionSummaries.size() * 1e9 / elapsed));
+      }
+    }
+  }
+
   @Ignore
   @Test
   public void t() throws SQLException {
@@ -144,47 +170,47 @@ public class RegionSqlTest {
     return new HikariDataSource(config);
   }
 
-  private static List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries(WorldMap.Region region) {
-    List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries = new ArrayList<>();
-    final Map<Integer, DeviceProjectorSingleZoom.RegionSummaries> regionSummariesMap = regionSummariesFor(region);
+  private static List<RegionStore.RegionSummary> regionSummaries(WorldMap.Region region) {
+    List<RegionStore.RegionSummary> regionSummaries = new ArrayList<>();
+    final Map<Integer, RegionStore.RegionSummaries> regionSummariesMap = regionSummariesFor(region);
     regionSummariesMap
         .forEach((zoom, summaries) -> regionSummaries.addAll(summaries.asList()));
     return regionSummaries;
   }
 
-  private static Map<Integer, DeviceProjectorSingleZoom.RegionSummaries> regionSummariesFor(WorldMap.Region region) {
-    final Map<Integer, DeviceProjectorSingleZoom.RegionSummaries> regionSummariesMap = new HashMap<>();
-    final List<Device.DeviceActivated> devicesActivated = devicesFor(region);
+  private static Map<Integer, RegionStore.RegionSummaries> regionSummariesFor(WorldMap.Region region) {
+    final Map<Integer, RegionStore.RegionSummaries> regionSummariesMap = new HashMap<>();
+    final List<WorldMap.Region> devicesActivated = devicesFor(region);
 
-    IntStream.rangeClosed(3, 18).forEach(zoom -> regionSummariesMap.put(zoom, new DeviceProjectorSingleZoom.RegionSummaries(zoom)));
+    IntStream.rangeClosed(3, 18).forEach(zoom -> regionSummariesMap.put(zoom, new RegionStore.RegionSummaries(zoom)));
     devicesActivated
         .forEach(device -> IntStream.rangeClosed(3, 18)
-            .forEach(zoom -> regionSummariesMap.get(zoom).add(device)));
+            .forEach(zoom -> regionSummariesMap.get(zoom).add(new Device.DeviceActivated(), tileKeyAtZoom(zoom, deviceTileKeyOf(device)))));
     return regionSummariesMap;
   }
 
-  private static List<Device.DeviceActivated> devicesFor(WorldMap.Region region) {
+  private static List<WorldMap.Region> devicesFor(WorldMap.Region region) {
     if (region.isDevice()) {
-      return Collections.singletonList(new Device.DeviceActivated(region));
+      return Collections.singletonList(region);
     } else {
-      List<Device.DeviceActivated> devices = new ArrayList<>();
+      List<WorldMap.Region> devices = new ArrayList<>();
       subRegionsFor(region)
           .forEach(subRegion -> devices.addAll(devicesFor(subRegion)));
       return devices;
     }
   }
 
-  private static void insertUpdate(DataSource dataSource, int increment, List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries) throws SQLException {
+  private static void insertUpdate(DataSource dataSource, int increment, List<RegionStore.RegionSummary> regionSummaries) throws SQLException {
     for (int i = 0; i < regionSummaries.size(); i += increment) {
       insertUpdate(dataSource, regionSummaries.subList(i, Math.min(i + increment, regionSummaries.size())));
       testKit.system().log().info("{}", String.format("commit %,d", i + increment));
     }
   }
 
-  private static void insertUpdate(DataSource dataSource, List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries) throws SQLException {
+  private static void insertUpdate(DataSource dataSource, List<RegionStore.RegionSummary> regionSummaries) throws SQLException {
     try (Connection connection = dataSource.getConnection();
          Statement statement = connection.createStatement()) {
-      final String sql = DeviceProjectorSingleZoom.DeviceEventHandler.sql(regionSummaries);
+      final String sql = RegionUpsert.sql(regionSummaries);
       statement.executeUpdate(sql);
       connection.commit();
     }
@@ -194,13 +220,13 @@ public class RegionSqlTest {
     return Math.round(Math.pow(4, 18 - zoomSelection) / Math.pow(4, 18 - Math.max(zoomSelection, zoomRegion)));
   }
 
-  private long regionsForZoom(int zoom, List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries) {
+  private long regionsForZoom(int zoom, List<RegionStore.RegionSummary> regionSummaries) {
     return regionSummaries.stream()
         .filter(r -> r.region.zoom == zoom)
         .count();
   }
 
-  private long devicesForZoom(int zoom, List<DeviceProjectorSingleZoom.RegionSummary> regionSummaries) {
+  private long devicesForZoom(int zoom, List<RegionStore.RegionSummary> regionSummaries) {
     return regionSummaries.stream()
         .filter(r -> r.region.zoom == zoom)
         .map(rs -> rs.deviceCount)
@@ -0,0 +1,92 @@
+package woe.twin;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static woe.twin.WorldMap.*;
+
+public class RegionUpsertTest {
+  @Test
+  public void copyWhileLaggingThenConfiguredWriter() {
+    final var writerSelector = new RegionUpsert.WriterSelector("test", RegionUpsert.Writer.batch, Duration.ofMinutes(1));
+    final var now = System.currentTimeMillis();
+
+    assertEquals(RegionUpsert.Writer.copy, writerSelector.select(now - Duration.ofHours(1).toMillis()));
+    assertEquals(RegionUpsert.Writer.batch, writerSelector.select(now));
+  }
+
+  @Test
+  public void zeroBulkLoadLagNeverCopies() {
+    final var writerSelector = new RegionUpsert.WriterSelector("test", RegionUpsert.Writer.statement, Duration.ZERO);
+
+    assertEquals(RegionUpsert.Writer.statement, writerSelector.select(0));
+  }
+
+  @Test
+  public void copyTextKeepsExactDoubles() {
+    final var region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+    final var rows = new RegionUpsert.Rows(2).add(region, 1, 1, 0).add(regionAtLatLng(3, latLng(51.5007541, -0.11688530)), 3, 1, 2);
+
+    final var lines = RegionUpsert.copyText(rows).split("\n");
+
+    assertEquals(2, lines.length);
+    final var columns = lines[0].split("\t");
+    assertEquals(9, columns.length);
+    assertEquals(region.zoom, Integer.parseInt(columns[0]));
+    assertEquals(zOrderOf(region.tileKey()), Long.parseLong(columns[1]));
+    assertEquals(region.topLeft.lat, Double.parseDouble(columns[2]));
+    assertEquals(region.topLeft.lng, Double.parseDouble(columns[3]));
+    assertEquals(region.botRight.lat, Double.parseDouble(columns[4]));
+    assertEquals(region.botRight.lng, Double.parseDouble(columns[5]));
+    assertEquals("3\t", lines[1].substring(0, 2));
+    assertTrue(lines[1].endsWith("\t3\t1\t2"));
+  }
+
+  @Test
+  public void stripesOnlyCoarseZooms() {
+    final var regionStripes = new RegionStripes(4, 6, 5 % 4);
+    final var summaries = List.of(
+        new RegionStore.RegionSummary(regionAtLatLng(3, latLng(51.5007541, -0.11688530)), 1, 1, 0),
+        new RegionStore.RegionSummary(regionAtLatLng(18, latLng(51.5007541, -0.11688530)), 1, 1, 0));
+
+    final var lines = RegionUpsert.copyText(RegionUpsert.rows(summaries, regionStripes)).split("\n");
+    final var sql = RegionUpsert.sql(summaries, regionStripes);
+
+    assertTrue(lines[0].endsWith("\t1\t1\t0\t1"));
+    assertTrue(lines[1].endsWith("\t1\t1\t0\t0"));
+    assertTrue(sql.contains("sad_count, stripe)"));
+    assertTrue(sql.contains(", 1, 1, 0, 1)"));
+    assertFalse(RegionUpsert.sql(summaries, RegionStripes.none).contains("stripe"));
+    assertTrue(HttpServer.sqlInRange(regionAtLatLng(3, latLng(51.5007541, -0.11688530))).contains("sum(device_count) as device_count"));
+  }
+
+  @Test
+  public void flappingDeviceNetsToNoRows() {
+    final var device = tileKeyOf(regionAtLatLng(18, latLng(51.5007541, -0.11688530)));
+    final var other = tileKeyOf(regionAtLatLng(18, latLng(48.85, 2.35)));
+    final var zeroRowsDropped = RegionUpsert.zeroRowsDropped.sum();
+    final var regionSummaries = new RegionStore.RegionSummaries(18);
+
+    for (Device.Event event : List.of(new Device.DeviceMadeSad(), new Device.DeviceMadeHappy(), new Device.DeviceMadeSad(), new Device.DeviceMadeHappy())) {
+      regionSummaries.add(event, device);
+    }
+    regionSummaries.add(new Device.DeviceActivated(), other);
+
+    assertEquals(List.of(regionForTileKey(other)), regionSummaries.asList().stream().map(summary -> summary.region).collect(Collectors.toList()));
+    assertEquals(zeroRowsDropped + 1, RegionUpsert.zeroRowsDropped.sum());
+  }
+
+  @Test
+  public void noRowsSendsNoStatement() throws SQLException {
+    final var statementsAvoided = RegionUpsert.statementsAvoided.sum();
+
+    RegionUpsert.write(null, RegionUpsert.Writer.statement, new RegionUpsert.Rows(0), () -> fail("no SQL for no rows"));
+
+    assertEquals(statementsAvoided + 1, RegionUpsert.statementsAvoided.sum());
+  }
+}
@@ -0,0 +1,102 @@
+package woe.twin;
+
+import akka.NotUsed;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.projection.eventsourced.EventEnvelope;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SharedEventsByTagTest {
+  @ClassRule
+  public static final TestKitJunitResource testKit = new TestKitJunitResource(ConfigFactory.parseString("akka.actor.provider = local"));
+
+  private final List<EventEnvelope<Device.Event>> journal = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void subscribersShareOneLiveQueryAndKeepTheirOffsets() throws Exception {
+    append(1, 5);
+    final var shared = new SharedEventsByTag(testKit.system(), this::eventsByTag, this::currentEventsByTag, 16, 100);
+    final var liveQueries = shared.liveQueries.sum();
+
+    final var fromStart = shared.eventsByTag("0", 0).take(10).runWith(Sink.seq(), testKit.system()).toCompletableFuture();
+    final var fromThree = shared.eventsByTag("0", 3).take(7).runWith(Sink.seq(), testKit.system()).toCompletableFuture();
+    Thread.sleep(200);
+    append(6, 10);
+
+    assertEquals(LongStream.rangeClosed(1, 10).boxed().collect(Collectors.toList()), offsets(fromStart.get(3, TimeUnit.SECONDS)));
+    assertEquals(LongStream.rangeClosed(4, 10).boxed().collect(Collectors.toList()), offsets(fromThree.get(3, TimeUnit.SECONDS)));
+    assertEquals(liveQueries + 1, shared.liveQueries.sum());
+  }
+
+  @Test
+  public void slowSubscriberDetachesWithoutHoldingBackTheOthers() throws Exception {
+    append(1, 10);
+    final var shared = new SharedEventsByTag(testKit.system(), this::eventsByTag, this::currentEventsByTag, 16, 100);
+    final var detachedSubscribers = shared.detachedSubscribers.sum();
+
+    final var fast = shared.eventsByTag("1", 0).take(300).runWith(Sink.seq(), testKit.system()).toCompletableFuture();
+    final var slow = shared.eventsByTag("1", 0).throttle(1, Duration.ofMillis(10)).take(300).runWith(Sink.seq(), testKit.system()).toCompletableFuture();
+    Thread.sleep(200);
+    for (long from = 11; from <= 300; from += 10) {
+      append(from, from + 9);
+      Thread.sleep(10);
+    }
+
+    assertEquals(LongStream.rangeClosed(1, 300).boxed().collect(Collectors.toList()), offsets(fast.get(1, TimeUnit.SECONDS)));
+    assertFalse(slow.isDone());
+    assertEquals(LongStream.rangeClosed(1, 300).boxed().collect(Collectors.toList()), offsets(slow.get(10, TimeUnit.SECONDS)));
+    assertEquals(detachedSubscribers + 1, shared.detachedSubscribers.sum());
+  }
+
+  private void append(long from, long to) {
+    LongStream.rangeClosed(from, to).forEach(ordering ->
+        journal.add(EventEnvelope.create(Offset.sequence(ordering), "Device|" + ordering, 1, new Device.DeviceActivated(), 0)));
+  }
+
+  private Source<EventEnvelope<Device.Event>, NotUsed> currentEventsByTag(String tag, long offset) {
+    return Source.from(after(offset));
+  }
+
+  // Polls the journal like the JDBC read journal.
+  private Source<EventEnvelope<Device.Event>, NotUsed> eventsByTag(String tag, long offset) {
+    return Source.tick(Duration.ZERO, Duration.ofMillis(20), "poll")
+        .statefulMapConcat(() -> {
+          final long[] last = { offset };
+          return poll -> {
+            final var events = after(last[0]);
+            events.forEach(eventEnvelope -> last[0] = ((Sequence) eventEnvelope.offset()).value());
+            return events;
+          };
+        })
+        .mapMaterializedValue(cancellable -> NotUsed.getInstance());
+  }
+
+  private List<EventEnvelope<Device.Event>> after(long offset) {
+    final List<EventEnvelope<Device.Event>> events = new ArrayList<>();
+    journal.forEach(eventEnvelope -> {
+      if (((Sequence) eventEnvelope.offset()).value() > offset) {
+        events.add(eventEnvelope);
+      }
+    });
+    return events;
+  }
+
+  private static List<Long> offsets(List<EventEnvelope<Device.Event>> eventEnvelopes) {
+    return eventEnvelopes.stream().map(eventEnvelope -> ((Sequence) eventEnvelope.offset()).value()).collect(Collectors.toList());
+  }
+}
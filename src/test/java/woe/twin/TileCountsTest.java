@@ -0,0 +1,63 @@
+package woe.twin;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static woe.twin.WorldMap.*;
+
+public class TileCountsTest {
+  @Test
+  public void addNetsCountsPerTile() {
+    final var tileCounts = new TileCounts(16);
+    final var tileKey = tileKeyOf(regionAtLatLng(18, latLng(51.5007541, -0.11688530)));
+
+    tileCounts.add(tileKey, 1, 1, 0);
+    tileCounts.add(tileKey, 0, -1, 1);
+    tileCounts.add(tileKey, 1, 1, 0);
+
+    final var slot = tileCounts.slot(tileKey);
+    assertEquals(1, tileCounts.size());
+    assertEquals(tileKey, tileCounts.tileKey(slot));
+    assertEquals(2, tileCounts.deviceCount(slot));
+    assertEquals(1, tileCounts.happyCount(slot));
+    assertEquals(1, tileCounts.sadCount(slot));
+  }
+
+  @Test
+  public void growsBeyondExpectedTiles() {
+    final var tileCounts = new TileCounts(16);
+    final var tileKeys = LongStream.range(0, 1000).map(i -> tileKeyOf(18, (int) i / 32, (int) i % 32)).toArray();
+
+    for (long tileKey : tileKeys) {
+      tileCounts.add(tileKey, 1, 0, 1);
+    }
+
+    assertEquals(tileKeys.length, tileCounts.size());
+    for (long tileKey : tileKeys) {
+      assertEquals(1, tileCounts.deviceCount(tileCounts.slot(tileKey)));
+      assertEquals(1, tileCounts.sadCount(tileCounts.slot(tileKey)));
+    }
+    final var keys = tileCounts.tileKeys();
+    Arrays.sort(keys);
+    assertArrayEquals(tileKeys, keys);
+  }
+
+  @Test
+  public void clearRemovesAllTiles() {
+    final var tileCounts = new TileCounts(16);
+    final var tileKey = tileKeyOf(3, 2, 4);
+    tileCounts.add(tileKey, 1, 1, 0);
+
+    tileCounts.clear();
+
+    assertEquals(0, tileCounts.size());
+    assertEquals(-1, tileCounts.slot(tileKey));
+    assertEquals(0, tileCounts.tileKeys().length);
+    tileCounts.add(tileKey, 0, -1, 1);
+    assertEquals(0, tileCounts.deviceCount(tileCounts.slot(tileKey)));
+    assertEquals(-1, tileCounts.happyCount(tileCounts.slot(tileKey)));
+  }
+}
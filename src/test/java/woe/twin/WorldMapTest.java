@@ -2,7 +2,10 @@ package woe.twin;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -203,5 +206,242 @@ public class WorldMapTest {
 
     assertTrue(regions.size() > 0);
   }
-}
 
+  @Test
+  public void tileKeyRoundTripsForAllRegionsToZoom6() {
+    assertTileKeyRoundTrips(regionForZoom0(), 6);
+  }
+
+  @Test
+  public void tileKeyRoundTripsAtZoom18() {
+    final Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+    final long tileKey = tileKeyOf(region);
+
+    assertEquals(18, zoomOf(tileKey));
+    assertEquals(region, regionForTileKey(tileKey));
+    assertEquals(region.hashCode(), regionForTileKey(tileKey).hashCode());
+  }
+
+  @Test
+  public void tileKeyRowsAndColsAreInGrid() {
+    final Region topLeftRegion = regionAtLatLng(18, latLng(90, -180));
+    final Region botRightRegion = regionAtLatLng(18, latLng(-90, 180));
+
+    assertEquals(0, rowOf(tileKeyOf(topLeftRegion)));
+    assertEquals(0, colOf(tileKeyOf(topLeftRegion)));
+    assertEquals(rowsAt(18) - 1, rowOf(tileKeyOf(botRightRegion)));
+    assertEquals(colsAt(18) - 1, colOf(tileKeyOf(botRightRegion)));
+  }
+
+  private static void assertTileKeyRoundTrips(Region region, int zoomMax) {
+    assertEquals(region, regionForTileKey(tileKeyOf(region)));
+    if (region.zoom < zoomMax) {
+      subRegionsFor(region).forEach(subRegion -> assertTileKeyRoundTrips(subRegion, zoomMax));
+    }
+  }
+
+  @Test
+  public void regionAtLatLngMatchesRecursiveDescentAtRandomLatLngs() {
+    final Random random = new Random(18);
+
+    for (int i = 0; i < 2000; i++) {
+      final LatLng latLng = latLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+      for (int zoom = 0; zoom <= zoomMax; zoom++) {
+        assertEquals(regionAtLatLngRecursive(zoom, latLng), regionAtLatLng(zoom, latLng), String.format("zoom %d, %s", zoom, latLng));
+      }
+    }
+  }
+
+  @Test
+  public void regionAtLatLngMatchesRecursiveDescentOnTileEdges() {
+    final Random random = new Random(3);
+    final List<LatLng> latLngs = new ArrayList<>();
+    latLngs.add(latLng(90, -180));
+    latLngs.add(latLng(-90, 180));
+    latLngs.add(latLng(0, 0));
+    latLngs.add(latLng(90, 0));
+    latLngs.add(latLng(-90, 0));
+    latLngs.add(latLng(0, -180));
+    latLngs.add(latLng(0, 180));
+
+    for (int zoom = 1; zoom <= zoomMax; zoom++) {
+      for (int i = 0; i < 20; i++) {
+        final Region region = regionAtLatLng(zoom, latLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+        latLngs.add(region.topLeft);
+        latLngs.add(region.botRight);
+        latLngs.add(latLng(region.topLeft.lat, region.botRight.lng));
+        latLngs.add(latLng(region.botRight.lat, region.topLeft.lng));
+        latLngs.add(latLng(region.topLeft.lat, atCenter(region).lng));
+        latLngs.add(latLng(atCenter(region).lat, region.topLeft.lng));
+      }
+    }
+
+    latLngs.forEach(latLng -> {
+      for (int zoom = 0; zoom <= zoomMax; zoom++) {
+        assertEquals(regionAtLatLngRecursive(zoom, latLng), regionAtLatLng(zoom, latLng), String.format("zoom %d, %s", zoom, latLng));
+      }
+    });
+  }
+
+  @Test
+  public void regionAtLatLngIsNullOffTheMap() {
+    assertNull(regionAtLatLng(18, latLng(90.5, 0)));
+    assertNull(regionAtLatLng(18, latLng(0, -180.5)));
+    assertNull(regionAtLatLng(18, latLng(Double.NaN, 0)));
+    assertNull(regionAtLatLng(zoomMax + 1, latLng(0, 0)));
+    assertNull(regionAtLatLngRecursive(zoomMax + 1, latLng(0, 0)));
+    assertEquals(regionAtLatLngRecursive(0, latLng(91, 0)), regionAtLatLng(0, latLng(91, 0)));
+  }
+
+  @Test
+  public void ancestorTileKeysMatchRegionAtLatLng() {
+    final Random random = new Random(16);
+    final long[] tileKeys = ancestorTileKeys();
+
+    for (int i = 0; i < 1000; i++) {
+      final Region device = regionAtLatLng(18, latLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+      ancestorTileKeys(tileKeyOf(device), tileKeys);
+      for (int zoom = 3; zoom <= zoomMax; zoom++) {
+        assertEquals(regionAtLatLng(zoom, atCenter(device)), regionForTileKey(tileKeys[zoom - 3]));
+      }
+    }
+  }
+
+  @Test
+  public void tileKeyAtZoomMatchesRegionAtLatLngForAllZooms() {
+    final Random random = new Random(0);
+
+    for (int i = 0; i < 1000; i++) {
+      final Region device = regionAtLatLng(18, latLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+      for (int zoom = 0; zoom <= zoomMax; zoom++) {
+        assertEquals(regionAtLatLng(zoom, atCenter(device)), regionForTileKey(tileKeyAtZoom(zoom, tileKeyOf(device))));
+      }
+    }
+  }
+
+  @Test
+  public void entityIdRoundTrips() {
+    final Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+    final String entityId = entityIdOf(region);
+
+    assertEquals(region, regionForEntityId(entityId));
+    assertEquals(tileKeyOf(region), tileKeyForEntityId(entityId));
+    assertEquals(tileKeyOf(region), tileKeyForEntityId("Device|" + entityId, "Device|".length()));
+    assertEquals(regionForZoom0(), regionForEntityId(entityIdOf(regionForZoom0())));
+  }
+
+  @Test
+  public void legacyEntityIdsDecode() {
+    final Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+    final String legacyEntityId = legacyEntityIdOf(region);
+
+    assertTrue(isLegacyEntityId(legacyEntityId));
+    assertFalse(isLegacyEntityId(entityIdOf(region)));
+    assertEquals(region, regionForEntityId(legacyEntityId));
+    assertEquals(tileKeyOf(region), tileKeyForEntityId(legacyEntityId));
+    assertEquals(legacyEntityId, legacyEntityIdOf(regionForEntityId(entityIdOf(region))));
+  }
+
+  @Test
+  public void entityIdThatIsNotATileKeyFails() {
+    assertThrows(IllegalArgumentException.class, () -> tileKeyForEntityId("not-a-tile-key"));
+    assertThrows(IllegalArgumentException.class, () -> tileKeyForEntityId(""));
+  }
+
+  @Test
+  public void regionsInMatchesCloningRegionsAcrossAndDown() {
+    final Random random = new Random(5);
+
+    for (int i = 0; i < 200; i++) {
+      final int zoom = 3 + random.nextInt(16);
+      final LatLng center = latLng(random.nextDouble() * 160 - 80, random.nextDouble() * 340 - 170);
+      final double latLength = latLengthAt(zoom) * (1 + random.nextDouble() * 20);
+      final double lngLength = lngLengthAt(zoom) * (1 + random.nextDouble() * 40);
+      final Region area = region(zoom,
+          topLeft(Math.min(90, center.lat + latLength / 2), Math.max(-180, center.lng - lngLength / 2)),
+          botRight(Math.max(-90, center.lat - latLength / 2), Math.min(180, center.lng + lngLength / 2)));
+
+      assertEquals(new HashSet<>(regionsInCloning(area)), new HashSet<>(regionsIn(area)), area.toString());
+    }
+  }
+
+  @Test
+  public void regionsInIncludesAllOverlappingRegionsWhenAreaStartsOnTileEdges() {
+    final Region tile = regionAtLatLng(10, latLng(51.5007541, -0.11688530));
+    final Region area = region(10, tile.topLeft, botRight(tile.botRight.lat - latLengthAt(10) / 2, tile.botRight.lng + lngLengthAt(10) / 2));
+    final List<Region> regions = regionsIn(area);
+
+    assertEquals(4, regions.size());
+    assertTrue(regions.stream().allMatch(area::overlaps));
+  }
+
+  @Test
+  public void tileKeysInStopsAtLimitAndSplitsForParallelStreams() {
+    final LatLng topLeft = latLng(85.24439622732126, -168.04687500000003);
+    final LatLng botRight = latLng(-85.24439622732126, 167.87109375000003);
+    final Region area = new Region(12, topLeft, botRight);
+    final long count = tileKeysIn(area).count();
+
+    assertTrue(count > 1_000_000);
+    assertEquals(100, tileKeysIn(area, 100, false).count());
+    assertEquals(count, tileKeysIn(area, Long.MAX_VALUE, true).count());
+    assertEquals(tileKeysIn(area).sum(), tileKeysIn(area, Long.MAX_VALUE, true).sum());
+    assertEquals(0, tileKeysIn(region(12, topLeft(10, 200), botRight(5, 210))).count());
+  }
+
+  @Test
+  public void zOrderRoundTripsAndInterleavesRowAndCol() {
+    final Region region = regionAtLatLng(18, latLng(51.5007541, -0.11688530));
+    final long tileKey = tileKeyOf(region);
+
+    assertEquals(tileKey, tileKeyForZOrder(18, zOrderOf(tileKey)));
+    assertEquals(0b10, zOrderOf(tileKeyOf(18, 1, 0)));
+    assertEquals(0b01, zOrderOf(tileKeyOf(18, 0, 1)));
+    assertEquals(0b1111, zOrderOf(tileKeyOf(18, 3, 3)));
+  }
+
+  @Test
+  public void zOrderRangeInAreaBoundsTheTilesThatCoverIt() {
+    final Region area = region(14, topLeft(51.722349458282906, -0.44563293457031256), botRight(51.27909868682927, 0.21045684814453125));
+    final long zOrderMin = zOrderMinIn(area);
+    final long zOrderMax = zOrderMaxIn(area);
+
+    assertTrue(tileKeysIn(area).map(WorldMap::zOrderOf).allMatch(zOrder -> zOrder >= zOrderMin && zOrder <= zOrderMax));
+    assertEquals(zOrderMin, tileKeysIn(area).map(WorldMap::zOrderOf).min().orElseThrow());
+    assertEquals(zOrderMax, tileKeysIn(area).map(WorldMap::zOrderOf).max().orElseThrow());
+  }
+
+  // The original covering, starting at the top left region and cloning regions to the right and then down.
+  private static List<Region> regionsInCloning(Region area) {
+    final List<Region> regions = new ArrayList<>();
+    Region next = regionAtLatLng(area.zoom, area.topLeft);
+    while (regions.isEmpty() || area.overlaps(next)) {
+      regions.add(next);
+      next = next.cloneRight();
+    }
+    new ArrayList<>(regions).forEach(region -> {
+      Region below = region.cloneBelow();
+      while (area.overlaps(below)) {
+        regions.add(below);
+        below = below.cloneBelow();
+      }
+    });
+    return regions;
+  }
+
+  // The original descent from zoom 0 through subRegionsFor, kept here as the reference for regionAtLatLng.
+  private static Region regionAtLatLngRecursive(int zoom, LatLng latLng) {
+    return regionAtLatLngRecursive(zoom, latLng, regionForZoom0());
+  }
+
+  private static Region regionAtLatLngRecursive(int zoom, LatLng latLng, Region region) {
+    if (zoom == region.zoom) {
+      return region;
+    }
+    return subRegionsFor(region).stream()
+        .filter(r -> r.contains(latLng))
+        .findFirst()
+        .map(subRegion -> regionAtLatLngRecursive(zoom, latLng, subRegion))
+        .orElse(null);
+  }
+}